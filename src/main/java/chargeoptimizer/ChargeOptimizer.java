@@ -34,7 +34,8 @@ import org.slf4j.LoggerFactory;
  * 
  * When the {@code ChargeOptimizer} has been {@code start()}ed, all accesses to this class with
  * the exception of {@code stop()} and {@code getXXX()} should be done via its
- * {@code executorService}.
+ * {@code executorService}. Other threads can read a consistent view of the state with
+ * {@code getStatus()}, which never waits for the {@code executorService}.
  */
 public class ChargeOptimizer {
     
@@ -49,21 +50,114 @@ public class ChargeOptimizer {
     private Duration logInterval = Duration.ofSeconds(60);
     private Duration optimizationTime = Duration.ofHours(8);
     private Duration granularity = Duration.ofMinutes(5);
+    private Duration reoptimizationInterval = Duration.ofHours(1);
     
     private ScheduledExecutorService executorService;
     
     private Charger.State chargerState = Charger.State.NO_CAR;
     private boolean chargerEnabled = false;
     private boolean override = false;
-    private TimeSeries<Double> optimCosts;
-    private TimeSeries<Boolean> optimResult;
+    private DoubleTimeSeries optimCosts;
+    private ChargingSchedule optimResult;
+    private long optimDataVersion;
+    private long lastOptimizationMillis;
     private LocalDateTime lastStateChange = TimeUtils.now();
     private LocalDateTime lastEnabledChange = TimeUtils.now();
+    
+    private volatile Status status = new Status(lastStateChange, chargerState, lastStateChange,
+            chargerEnabled, lastEnabledChange, override, null, null, Double.NaN);
+    
+    /**
+     * An immutable snapshot of the state of the {@code ChargeOptimizer}. A new snapshot is
+     * published after every check of the charger state and after every change of the state
+     * from outside.
+     */
+    public static class Status {
+        private final LocalDateTime time;
+        private final Charger.State chargerState;
+        private final LocalDateTime lastStateChange;
+        private final boolean chargerEnabled;
+        private final LocalDateTime lastEnabledChange;
+        private final boolean override;
+        private final ChargingSchedule plan;
+        private final DoubleTimeSeries planCosts;
+        private final double cost;
+        
+        Status(LocalDateTime time, Charger.State chargerState, LocalDateTime lastStateChange,
+                boolean chargerEnabled, LocalDateTime lastEnabledChange, boolean override,
+                ChargingSchedule plan, DoubleTimeSeries planCosts, double cost) {
+            this.time = time;
+            this.chargerState = chargerState;
+            this.lastStateChange = lastStateChange;
+            this.chargerEnabled = chargerEnabled;
+            this.lastEnabledChange = lastEnabledChange;
+            this.override = override;
+            this.plan = plan;
+            this.planCosts = planCosts;
+            this.cost = cost;
+        }
+        
+        /**
+         * @return the UTC time at which this snapshot was taken
+         */
+        public LocalDateTime getTime() {
+            return time;
+        }
+        
+        public Charger.State getChargerState() {
+            return chargerState;
+        }
+        
+        public LocalDateTime getLastStateChange() {
+            return lastStateChange;
+        }
+        
+        public boolean getChargerEnabled() {
+            return chargerEnabled;
+        }
+        
+        public LocalDateTime getLastEnabledChange() {
+            return lastEnabledChange;
+        }
+        
+        public boolean getOverride() {
+            return override;
+        }
+        
+        /**
+         * @return the current charging plan, or null if there is none
+         */
+        public ChargingSchedule getPlan() {
+            return plan;
+        }
+        
+        /**
+         * @return the costs on which the current plan is based, or null if there is no plan
+         */
+        public DoubleTimeSeries getPlanCosts() {
+            return planCosts;
+        }
+        
+        /**
+         * @return the cost at the time of the snapshot, or {@code NaN} if it is unknown
+         */
+        public double getCost() {
+            return cost;
+        }
+    }
 
     private void checkState() {
         if (charger == null)
             return;
         
+        try {
+            updateChargerState();
+        } finally {
+            publishStatus();
+        }
+    }
+    
+    private void updateChargerState() {
         try {
             Charger.State previousState = chargerState;
             chargerState = charger.getState();
@@ -81,11 +175,13 @@ public class ChargeOptimizer {
                 // run optimization
                 if (optimizer != null && costSource != null) {
                     LocalDateTime start = TimeUtils.roundTimeTo(TimeUtils.now(), granularity);
-                    optimCosts = new TimeSeries<>(start, granularity, start.plus(optimizationTime),
-                            costSource::getCostAt);
+                    optimCosts = costSource.getCosts(start, start.plus(optimizationTime),
+                            granularity);
+                    optimDataVersion = costSource.getDataVersion();
                     optimResult = optimizer.optimize(optimCosts);
+                    lastOptimizationMillis = TimeUtils.nowMillis();
                     
-                    logger.info("Optimization result: " + optimResult.getEntries());
+                    logger.info("Optimization result: " + optimResult);
                 }
             } else if (previousState.isConnected() && !chargerState.isConnected()) {
                 logger.info("Car disconnected.");
@@ -94,9 +190,13 @@ public class ChargeOptimizer {
                 override = false;
             }
             
+            // update the plan if new costs are available
+            if (chargerState.isConnected() && optimResult != null && reoptimizationDue())
+                reoptimize();
+            
             // check for new optimization state
             if (chargerState.isConnected() && !override && optimResult != null) {
-                chargerEnabled = optimResult.getValueAt(TimeUtils.now());
+                chargerEnabled = optimResult.isEnabledAt(TimeUtils.nowMillis());
             }
             
             // check for charger enabled state
@@ -111,13 +211,60 @@ public class ChargeOptimizer {
         }
     }
     
+    /**
+     * Take a new snapshot of the state; must be called from the {@code executorService}.
+     */
+    private void publishStatus() {
+        LocalDateTime now = TimeUtils.now();
+        status = new Status(now, chargerState, lastStateChange, chargerEnabled,
+                lastEnabledChange, override, optimResult,
+                (optimResult != null) ? optimCosts : null, costAt(now));
+    }
+    
+    private boolean reoptimizationDue() {
+        if (optimizer == null || costSource == null)
+            return false;
+        
+        if (costSource.getDataVersion() != optimDataVersion)
+            return true;
+        return !reoptimizationInterval.isZero() &&
+                TimeUtils.nowMillis() - lastOptimizationMillis >= reoptimizationInterval.toMillis();
+    }
+    
+    /**
+     * Optimize the remaining part of the current plan. The slot which is currently active and
+     * all earlier slots are kept; if the costs of the remaining slots have not changed, the
+     * previous plan is kept as well. The new plan replaces the old one in a single assignment.
+     */
+    private void reoptimize() {
+        optimDataVersion = costSource.getDataVersion();
+        lastOptimizationMillis = TimeUtils.nowMillis();
+        
+        LocalDateTime start = TimeUtils.roundTimeTo(TimeUtils.now(), granularity).plus(granularity);
+        LocalDateTime end = optimResult.getEnd();
+        if (!start.isBefore(end))
+            return;
+        
+        DoubleTimeSeries remainingCosts = costSource.getCosts(start, end, granularity);
+        if (remainingCosts.hasSameValues(
+                optimCosts.window(start, Duration.between(start, end)))) {
+            logger.debug("Costs unchanged; keeping plan.");
+            return;
+        }
+        
+        ChargingSchedule remainingResult = optimizer.reoptimize(remainingCosts, optimResult);
+        optimCosts = optimCosts.replaceFrom(remainingCosts);
+        optimResult = optimResult.replaceFrom(remainingResult);
+        
+        logger.info("Reoptimization result: " + optimResult);
+    }
+    
     private void logState() {
         if (statisticsDatabase == null)
             return;
         
         LocalDateTime now = TimeUtils.now().truncatedTo(ChronoUnit.SECONDS);
-        Double cost = costAt(now);
-        if (cost == null) cost = Double.NaN;
+        double cost = costAt(now);
         
         // the charger state can be a few seconds old (at most of age checkInterval)
         statisticsDatabase.logState(now, chargerState, chargerEnabled, cost);
@@ -128,22 +275,30 @@ public class ChargeOptimizer {
      * the optimization. Otherwise use the {@code costSource}. This method is not thread-safe and
      * should be called via the {@code executorService} once {@code start()} has been called.
      * @param time
-     * @return the cost or {@code null} if it could not be determined
+     * @return the cost or {@code NaN} if it could not be determined
      */
-    public Double costAt(LocalDateTime time) {
-        Double cost = null;
+    public double costAt(LocalDateTime time) {
+        double cost = Double.NaN;
         
         if (optimResult != null) {
             cost = optimCosts.getValueAt(time);
         }
         
-        if (cost == null && costSource != null) {
-            cost = costSource.getCostAt(time);
+        if (Double.isNaN(cost)) {
+            cost = sourceCostAt(time);
         }
         
         return cost;
     }
     
+    private double sourceCostAt(LocalDateTime time) {
+        if (costSource == null)
+            return Double.NaN;
+        
+        Double cost = costSource.getCostAt(time);
+        return (cost == null) ? Double.NaN : cost;
+    }
+    
     /**
      * Get the time at which the next enabled state change after the time {@code afterTime} will
      * happen. This method is not thread-safe and should be called via the {@code executorService}
@@ -153,12 +308,7 @@ public class ChargeOptimizer {
      */
     public LocalDateTime nextEnabledStateChange(LocalDateTime afterTime) {
         if (optimResult != null) {
-            boolean enabled = optimResult.getValueAt(afterTime);
-            for (TimeSeries.Entry<Boolean> e : optimResult.getEntries()) {
-                if (e.time.isAfter(afterTime) && e.item != enabled) {
-                    return e.time;
-                }
-            }
+            return optimResult.nextTransition(afterTime);
         }
         
         return null;
@@ -171,6 +321,7 @@ public class ChargeOptimizer {
     public void start() {
         logger.info("Starting...");
         executorService = Executors.newSingleThreadScheduledExecutor();
+        executorService.execute(this::publishStatus);
         
         executorService.scheduleWithFixedDelay(this::checkState, 0,
                 checkInterval.toMillis(), TimeUnit.MILLISECONDS);
@@ -211,6 +362,13 @@ public class ChargeOptimizer {
             }
         }
         
+        if (costSource != null)
+            costSource.stop();
+        
+        // write all pending log entries
+        if (statisticsDatabase != null)
+            statisticsDatabase.close();
+        
         // leave charger in enabled state
         try {
             if (charger != null)
@@ -285,6 +443,19 @@ public class ChargeOptimizer {
         this.granularity = granularity;
     }
 
+    public Duration getReoptimizationInterval() {
+        return reoptimizationInterval;
+    }
+
+    /**
+     * Set the interval after which the plan is updated even if the cost source has not reported
+     * new data; {@code Duration.ZERO} disables periodic updates.
+     * @param reoptimizationInterval
+     */
+    public void setReoptimizationInterval(Duration reoptimizationInterval) {
+        this.reoptimizationInterval = reoptimizationInterval;
+    }
+
     public ScheduledExecutorService getExecutorService() {
         return executorService;
     }
@@ -299,6 +470,7 @@ public class ChargeOptimizer {
 
     public void setChargerEnabled(boolean chargerEnabled) {
         this.chargerEnabled = chargerEnabled;
+        publishStatus();
     }
 
     public boolean getOverride() {
@@ -307,6 +479,7 @@ public class ChargeOptimizer {
 
     public void setOverride(boolean override) {
         this.override = override;
+        publishStatus();
     }
     
     public LocalDateTime getLastStateChange() {
@@ -316,6 +489,14 @@ public class ChargeOptimizer {
     public LocalDateTime getLastEnabledChange() {
         return lastEnabledChange;
     }
+
+    /**
+     * Get the latest snapshot of the state; can be called from any thread.
+     * @return the status
+     */
+    public Status getStatus() {
+        return status;
+    }
 // </editor-fold>
 
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.BitSet;
+
+/**
+ * Evenly-spaced plan of the times at which charging is enabled. The plan is stored as a bit set
+ * with one bit per time slot, so that queries are answered by scanning whole words instead of
+ * single entries. Objects of this class are immutable.
+ */
+public class ChargingSchedule {
+    
+    private final LocalDateTime start;
+    private final Duration granularity;
+    // start and granularity in milliseconds (since the epoch) for index calculations
+    private final long startMillis;
+    private final long granularityMillis;
+    private final BitSet enabled;
+    private final int size;
+    private final boolean enabledBefore;
+    private final boolean enabledAfter;
+    
+    /**
+     * The schedule begins at time {@code start} and contains {@code size} time slots, each of
+     * which lasts for the time {@code granularity}. Charging is enabled in the slots whose bits
+     * are set in {@code enabled}. Before {@code start}, the state is {@code enabledBefore}, after
+     * {@code size} times {@code granularity} it is {@code enabledAfter}. The bit set is copied.
+     * @param start
+     * @param granularity
+     * @param enabled
+     * @param size
+     * @param enabledBefore
+     * @param enabledAfter
+     */
+    public ChargingSchedule(LocalDateTime start, Duration granularity, BitSet enabled, int size,
+            boolean enabledBefore, boolean enabledAfter) {
+        this.start = start;
+        this.granularity = granularity;
+        this.startMillis = TimeUtils.toEpochMillis(start);
+        this.granularityMillis = TimeUtils.granularityMillis(granularity);
+        this.enabled = (BitSet) enabled.clone();
+        if (this.enabled.length() > size)
+            this.enabled.clear(size, this.enabled.length());
+        this.size = size;
+        this.enabledBefore = enabledBefore;
+        this.enabledAfter = enabledAfter;
+    }
+    
+    /**
+     * Check whether charging is enabled at a certain time.
+     * @param time
+     * @return true if charging is enabled
+     */
+    public boolean isEnabledAt(LocalDateTime time) {
+        return isEnabledAt(TimeUtils.toEpochMillis(time));
+    }
+    
+    /**
+     * Check whether charging is enabled at a certain time given in milliseconds since the epoch;
+     * does not allocate.
+     * @param epochMillis
+     * @return true if charging is enabled
+     */
+    public boolean isEnabledAt(long epochMillis) {
+        long pos = TimeUtils.floorIndex(startMillis, granularityMillis, epochMillis);
+        if (pos < 0) {
+            return enabledBefore;
+        } else if (pos >= size) {
+            return enabledAfter;
+        } else {
+            return enabled.get((int) pos);
+        }
+    }
+    
+    /**
+     * Check whether charging is enabled in the slot with a certain index.
+     * @param index between 0 (inclusive) and {@code size()} (exclusive)
+     * @return true if charging is enabled
+     */
+    public boolean isEnabled(int index) {
+        return enabled.get(index);
+    }
+    
+    /**
+     * Get the time of the first change of the enabled state after the time {@code afterTime}.
+     * @param afterTime
+     * @return the time of the next change, or null if the state does not change any more
+     */
+    public LocalDateTime nextTransition(LocalDateTime afterTime) {
+        long pos = TimeUtils.floorIndex(startMillis, granularityMillis,
+                TimeUtils.toEpochMillis(afterTime));
+        if (pos >= size)
+            return null;
+        
+        boolean state;
+        int from;
+        if (pos < 0) {
+            state = enabledBefore;
+            from = 0;
+        } else {
+            state = enabled.get((int) pos);
+            from = (int) pos + 1;
+        }
+        
+        int next = state ? enabled.nextClearBit(from) : enabled.nextSetBit(from);
+        if (next >= 0 && next < size) {
+            return getTime(next);
+        } else if (enabledAfter != state) {
+            return getEnd();
+        } else {
+            return null;
+        }
+    }
+    
+    /**
+     * Get the total time during which charging is enabled in the interval from {@code from}
+     * (inclusive) to {@code to} (exclusive). Slots which lie only partly in this interval are
+     * counted proportionally.
+     * @param from
+     * @param to
+     * @return the enabled time
+     */
+    public Duration enabledTimeBetween(LocalDateTime from, LocalDateTime to) {
+        if (!from.isBefore(to))
+            return Duration.ZERO;
+        
+        // all times relative to the start of the schedule
+        long fromMillis = TimeUtils.toEpochMillis(from) - startMillis;
+        long toMillis = TimeUtils.toEpochMillis(to) - startMillis;
+        long endMillis = granularityMillis * size;
+        long total = 0;
+        
+        // parts before and after the schedule
+        if (enabledBefore && fromMillis < 0)
+            total += Math.min(toMillis, 0) - fromMillis;
+        if (enabledAfter && toMillis > endMillis)
+            total += toMillis - Math.max(fromMillis, endMillis);
+        
+        // runs of enabled slots, clipped to the interval
+        long lower = Math.max(fromMillis, 0);
+        long upper = Math.min(toMillis, endMillis);
+        if (lower < upper) {
+            int firstSlot = (int) (lower / granularityMillis);
+            int lastSlot = (int) ((upper - 1) / granularityMillis);
+            for (int i = enabled.nextSetBit(firstSlot); i >= 0 && i <= lastSlot;
+                    i = enabled.nextSetBit(i)) {
+                int j = Math.min(enabled.nextClearBit(i), lastSlot + 1);
+                total += Math.min(j * granularityMillis, upper) -
+                        Math.max(i * granularityMillis, lower);
+                i = j;
+            }
+        }
+        
+        return Duration.ofMillis(total);
+    }
+    
+    /**
+     * Build a new schedule that follows this schedule until the start of {@code tail} and
+     * {@code tail} from then on. The start of {@code tail} must lie on a slot boundary of this
+     * schedule, and both schedules must have the same granularity.
+     * @param tail
+     * @return the combined schedule
+     */
+    public ChargingSchedule replaceFrom(ChargingSchedule tail) {
+        if (tail.granularityMillis != granularityMillis ||
+                Math.floorMod(tail.startMillis - startMillis, granularityMillis) != 0)
+            throw new IllegalArgumentException("Schedules are not aligned.");
+        
+        int offset = (int) ((tail.startMillis - startMillis) / granularityMillis);
+        if (offset < 0)
+            throw new IllegalArgumentException("Tail begins before this schedule.");
+        BitSet combined = enabled.get(0, Math.min(offset, size));
+        if (offset > size && enabledAfter)
+            combined.set(size, offset);
+        for (int i = tail.enabled.nextSetBit(0); i >= 0; i = tail.enabled.nextSetBit(i + 1))
+            combined.set(offset + i);
+        return new ChargingSchedule(start, granularity, combined, offset + tail.size,
+                enabledBefore, tail.enabledAfter);
+    }
+    
+    /**
+     * Get the number of slots in which charging is enabled.
+     * @return the number of enabled slots
+     */
+    public int enabledCount() {
+        return enabled.cardinality();
+    }
+    
+    /**
+     * Get the time at which the slot with a certain index begins.
+     * @param index
+     * @return the time
+     */
+    public LocalDateTime getTime(int index) {
+        return TimeUtils.ofEpochMillis(startMillis + index * granularityMillis);
+    }
+    
+    /**
+     * Get the start time of this schedule.
+     * @return the start time
+     */
+    public LocalDateTime getStart() {
+        return start;
+    }
+    
+    /**
+     * Get the end time of this schedule.
+     * @return the end time
+     */
+    public LocalDateTime getEnd() {
+        return getTime(size);
+    }
+    
+    /**
+     * @return the granularity
+     */
+    public Duration getGranularity() {
+        return granularity;
+    }
+    
+    /**
+     * Get the number of slots in this schedule.
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Lists the intervals in which charging is enabled.
+     * @return a string representation
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("[");
+        for (int i = enabled.nextSetBit(0); i >= 0 && i < size; i = enabled.nextSetBit(i)) {
+            int j = Math.min(enabled.nextClearBit(i), size);
+            if (s.length() > 1)
+                s.append(", ");
+            s.append(getTime(i)).append(" - ").append(getTime(j));
+            i = j;
+        }
+        return s.append("]").toString();
+    }
+    
+}
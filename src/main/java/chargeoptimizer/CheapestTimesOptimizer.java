@@ -17,8 +17,8 @@
 package chargeoptimizer;
 
 import java.time.Duration;
-import java.time.LocalDateTime;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,36 +33,129 @@ public class CheapestTimesOptimizer implements Optimizer {
     private Duration minimumChargingTime;
 
     @Override
-    public TimeSeries<Boolean> optimize(TimeSeries<Double> costs) {
+    public ChargingSchedule optimize(DoubleTimeSeries costs) {
+        return optimize(costs, minimumChargingTime);
+    }
+    
+    /**
+     * Only the part of the minimum charging time that has not been enabled by the previous plan
+     * is distributed over the remaining time.
+     */
+    @Override
+    public ChargingSchedule reoptimize(DoubleTimeSeries costs, ChargingSchedule previous) {
+        Duration committed = previous.enabledTimeBetween(previous.getStart(), costs.getStart());
+        Duration remaining = minimumChargingTime.minus(committed);
+        return optimize(costs, remaining.isNegative() ? Duration.ZERO : remaining);
+    }
+    
+    private ChargingSchedule optimize(DoubleTimeSeries costs, Duration minimumChargingTime) {
         // sanitize costs: replace unknown costs with average value
-        double avg = costs.getItems().stream()
-                .filter((d) -> (d != null)).mapToDouble(d -> d).average().orElse(0.);
-        TimeSeries<Double> costs2 = costs.replaceNullsWith(avg);
-        
-        // sort times by cost
-        ArrayList<TimeSeries.Entry<Double>> times = costs2.getEntries();
-        times.sort((o1, o2) -> Double.compare(o1.item, o2.item));
+        double avg = costs.average();
+        if (Double.isNaN(avg)) avg = 0.;
         
         // find maximum cost needed to get the minimum charging time
-        int timesNeeded = (int) minimumChargingTime.dividedBy(costs2.getGranularity());
-        if (costs2.getGranularity().multipliedBy(timesNeeded).compareTo(minimumChargingTime) < 0)
+        int timesNeeded = (int) minimumChargingTime.dividedBy(costs.getGranularity());
+        if (costs.getGranularity().multipliedBy(timesNeeded).compareTo(minimumChargingTime) < 0)
             timesNeeded++;
-        Double maxCost = times.get(timesNeeded-1).item;
+        int n = costs.size();
+        double maxCost;
+        if (timesNeeded <= 0) {
+            maxCost = Double.NEGATIVE_INFINITY;
+        } else if (timesNeeded > n) {
+            maxCost = Double.POSITIVE_INFINITY;
+        } else {
+            double[] scratch = new double[n];
+            costs.copyTo(scratch);
+            for (int i = 0; i < n; i++)
+                if (Double.isNaN(scratch[i])) scratch[i] = avg;
+            maxCost = select(scratch, timesNeeded-1);
+        }
         
         // enable charging at all times where the cost is smaller than maxCost and also after the
         // minimum charging time has been reached
-        ArrayList<Boolean> enabled = new ArrayList<>(costs2.size());
+        BitSet enabled = new BitSet(n);
         int count = 0;
-        for (LocalDateTime time : costs2.getTimes()) {
-            if (costs2.getValueAt(time) <= maxCost || count >= timesNeeded) {
+        for (int i = 0; i < n; i++) {
+            double cost = costs.getAsDouble(i);
+            if (Double.isNaN(cost)) cost = avg;
+            if (cost <= maxCost || count >= timesNeeded) {
                 count++;
-                enabled.add(true);
-            } else {
-                enabled.add(false);
+                enabled.set(i);
             }
         }
         
-        return new TimeSeries<>(costs2.getStart(), costs2.getGranularity(), enabled, false, true);
+        return new ChargingSchedule(costs.getStart(), costs.getGranularity(), enabled, n,
+                false, true);
+    }
+    
+    /**
+     * Find the k-th smallest value (counting from 0) in linear expected time. The array is
+     * partially reordered. Quickselect with median-of-three pivots is used; if it does not
+     * converge fast enough, the remaining range is sorted instead, which bounds the worst case
+     * to O(n log n).
+     * @param a the values, none of which may be NaN
+     * @param k
+     * @return the value that would be at index {@code k} if the array were sorted
+     */
+    static double select(double[] a, int k) {
+        return select(a, a.length, k);
+    }
+    
+    /**
+     * Find the k-th smallest value (counting from 0) among the first {@code length} values of
+     * an array, which are partially reordered; the rest of the array is not touched.
+     * @param a the values, none of which may be NaN
+     * @param length
+     * @param k
+     * @return the value that would be at index {@code k} if the first {@code length} values
+     * were sorted
+     */
+    static double select(double[] a, int length, int k) {
+        int left = 0;
+        int right = length - 1;
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(length));
+        
+        while (right > left) {
+            if (depthLimit-- == 0) {
+                Arrays.sort(a, left, right + 1);
+                return a[k];
+            }
+            
+            // median of three as pivot
+            int mid = (left + right) >>> 1;
+            if (a[mid] < a[left]) swap(a, mid, left);
+            if (a[right] < a[left]) swap(a, right, left);
+            if (a[right] < a[mid]) swap(a, right, mid);
+            double pivot = a[mid];
+            
+            // Hoare partition
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    swap(a, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return a[k];
+            }
+        }
+        return a[k];
+    }
+    
+    private static void swap(double[] a, int i, int j) {
+        double t = a[i];
+        a[i] = a[j];
+        a[j] = t;
     }
     
     public CheapestTimesOptimizer(Duration minimumChargingTime) {
@@ -16,6 +16,7 @@
  */
 package chargeoptimizer;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 
 /**
@@ -29,4 +30,48 @@ public interface CostSource {
      * @return the cost, or null if it is unknown */
     public Double getCostAt(LocalDateTime time);        
     
+    /**
+     * Gives the costs for a range of UTC times in one call. The time {@code end} is not
+     * included. The default implementation calls {@code getCostAt} for every time slot; cost
+     * sources which can do better should override this method.
+     * @param start UTC time of the first slot
+     * @param end UTC time after the last slot
+     * @param granularity length of each slot
+     * @return the costs, with {@code NaN} where they are unknown
+     */
+    public default DoubleTimeSeries getCosts(LocalDateTime start, LocalDateTime end,
+            Duration granularity) {
+        return new DoubleTimeSeries(start, granularity, end, time -> {
+            Double cost = getCostAt(time);
+            return (cost == null) ? Double.NaN : cost;
+        });
+    }
+    
+    /**
+     * Gives a number that changes whenever new cost data has become available, so that plans
+     * based on older data can be updated. Cost sources with fixed data always return the same
+     * number.
+     * @return the data version
+     */
+    public default long getDataVersion() {
+        return 0;
+    }
+    
+    /**
+     * Tells whether queries are answered from memory, without waiting for the network, the
+     * disk or a lock which is held during such waits, so that callers need not guard them with
+     * a timeout.
+     * @return true if queries never block
+     */
+    public default boolean isNonBlocking() {
+        return false;
+    }
+    
+    /**
+     * Stop all background activities of this cost source. The default implementation does
+     * nothing.
+     */
+    public default void stop() {
+    }
+    
 }
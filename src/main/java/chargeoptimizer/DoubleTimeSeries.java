@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Evenly-spaced time series of primitive {@code double} values, e.g. costs. Unknown values are
+ * represented by {@code Double.NaN}. Objects of this class are immutable.
+ */
+public class DoubleTimeSeries {
+    
+    private final LocalDateTime start;
+    private final Duration granularity;
+    // start and granularity in milliseconds (since the epoch) for index calculations
+    private final long startMillis;
+    private final long granularityMillis;
+    private final double[] values;
+    private final int offset;
+    private final int size;
+    private final double valueBefore;
+    private final double valueAfter;
+    
+    /**
+     * The time series begins at time {@code start} and contains the values contained in
+     * {@code values}, each of which lasts for the time {@code granularity}. Before {@code start},
+     * {@code valueBefore} is returned, after {@code values.length} times {@code granularity}
+     * {@code valueAfter} is returned. The array is copied.
+     * @param start
+     * @param granularity
+     * @param values
+     * @param valueBefore
+     * @param valueAfter
+     */
+    public DoubleTimeSeries(LocalDateTime start, Duration granularity, double[] values,
+            double valueBefore, double valueAfter) {
+        this(start, granularity, values, valueBefore, valueAfter, true);
+    }
+    
+    /**
+     * The time series begins at time {@code start} and contains the values contained in
+     * {@code values}, each of which lasts for the time {@code granularity}. Before {@code start}
+     * and after {@code values.length} times {@code granularity}, {@code NaN} is returned.
+     * @param start
+     * @param granularity
+     * @param values
+     */
+    public DoubleTimeSeries(LocalDateTime start, Duration granularity, double[] values) {
+        this(start, granularity, values, Double.NaN, Double.NaN);
+    }
+    
+    /**
+     * Build a new time series from a function. The time {@code end} is not included.
+     * @param start
+     * @param granularity
+     * @param end
+     * @param values
+     * @param valueBefore
+     * @param valueAfter
+     */
+    public DoubleTimeSeries(LocalDateTime start, Duration granularity, LocalDateTime end,
+            ToDoubleFunction<LocalDateTime> values, double valueBefore, double valueAfter) {
+        this.start = start;
+        this.granularity = granularity;
+        this.startMillis = TimeUtils.toEpochMillis(start);
+        this.granularityMillis = TimeUtils.granularityMillis(granularity);
+        
+        int size = (int) Math.max(0, TimeUtils.ceilIndex(startMillis, granularityMillis,
+                TimeUtils.toEpochMillis(end)));
+        this.values = new double[size];
+        this.offset = 0;
+        this.size = size;
+        for (int i = 0; i < size; i++) {
+            this.values[i] = values.applyAsDouble(
+                    TimeUtils.ofEpochMillis(startMillis + i * granularityMillis));
+        }
+        
+        this.valueBefore = valueBefore;
+        this.valueAfter = valueAfter;
+    }
+    
+    /**
+     * Build a new time series from a function. The time {@code end} is not included.
+     * @param start
+     * @param granularity
+     * @param end
+     * @param values
+     */
+    public DoubleTimeSeries(LocalDateTime start, Duration granularity, LocalDateTime end,
+            ToDoubleFunction<LocalDateTime> values) {
+        this(start, granularity, end, values, Double.NaN, Double.NaN);
+    }
+    
+    private DoubleTimeSeries(LocalDateTime start, Duration granularity, double[] values,
+            double valueBefore, double valueAfter, boolean copy) {
+        this.start = start;
+        this.granularity = granularity;
+        this.startMillis = TimeUtils.toEpochMillis(start);
+        this.granularityMillis = TimeUtils.granularityMillis(granularity);
+        this.values = copy ? values.clone() : values;
+        this.offset = 0;
+        this.size = values.length;
+        this.valueBefore = valueBefore;
+        this.valueAfter = valueAfter;
+    }
+    
+    // view on the values of another time series; the backing array is shared
+    private DoubleTimeSeries(DoubleTimeSeries series, int fromIndex, int toIndex) {
+        this.start = series.getTime(fromIndex);
+        this.granularity = series.granularity;
+        this.startMillis = series.startMillis + fromIndex * series.granularityMillis;
+        this.granularityMillis = series.granularityMillis;
+        this.values = series.values;
+        this.offset = series.offset + fromIndex;
+        this.size = toIndex - fromIndex;
+        this.valueBefore = series.valueBefore;
+        this.valueAfter = series.valueAfter;
+    }
+    
+    /**
+     * Build a new time series with every value transformed by {@code operator}. The values
+     * before and after the series are transformed as well.
+     * @param operator
+     * @return a new DoubleTimeSeries object with values transformed
+     */
+    public DoubleTimeSeries map(DoubleUnaryOperator operator) {
+        double[] newValues = new double[size];
+        for (int i = 0; i < size; i++)
+            newValues[i] = operator.applyAsDouble(values[offset + i]);
+        return new DoubleTimeSeries(start, granularity, newValues,
+                operator.applyAsDouble(valueBefore), operator.applyAsDouble(valueAfter), false);
+    }
+    
+    /**
+     * Build a new time series in which the entries with index {@code fromIndex} (inclusive) to
+     * {@code toIndex} (exclusive) are set to {@code value}.
+     * @param fromIndex
+     * @param toIndex
+     * @param value
+     * @return a new DoubleTimeSeries object with values replaced
+     */
+    public DoubleTimeSeries fill(int fromIndex, int toIndex, double value) {
+        double[] newValues = toArray();
+        Arrays.fill(newValues, fromIndex, toIndex, value);
+        return new DoubleTimeSeries(start, granularity, newValues, valueBefore, valueAfter, false);
+    }
+    
+    /**
+     * Build a new time series with all unknown ({@code NaN}) values replaced.
+     * @param replacementValue the value with which unknown values are replaced
+     * @return a new DoubleTimeSeries object with values replaced
+     */
+    public DoubleTimeSeries replaceNaNsWith(double replacementValue) {
+        double[] newValues = new double[size];
+        for (int i = 0; i < size; i++) {
+            double v = values[offset + i];
+            newValues[i] = Double.isNaN(v) ? replacementValue : v;
+        }
+        return new DoubleTimeSeries(start, granularity, newValues, valueBefore, valueAfter, false);
+    }
+    
+    /**
+     * Build a new time series that follows this time series until the start of {@code tail}
+     * and {@code tail} from then on. The start of {@code tail} must lie on a slot boundary of
+     * this time series, and both time series must have the same granularity. Slots between the
+     * end of this time series and the start of {@code tail} are unknown.
+     * @param tail
+     * @return the combined time series
+     */
+    public DoubleTimeSeries replaceFrom(DoubleTimeSeries tail) {
+        if (tail.granularityMillis != granularityMillis ||
+                Math.floorMod(tail.startMillis - startMillis, granularityMillis) != 0)
+            throw new IllegalArgumentException("Time series are not aligned.");
+        
+        int offset = (int) ((tail.startMillis - startMillis) / granularityMillis);
+        if (offset < 0)
+            throw new IllegalArgumentException("Tail begins before this time series.");
+        double[] newValues = new double[offset + tail.size];
+        Arrays.fill(newValues, Double.NaN);
+        System.arraycopy(values, this.offset, newValues, 0, Math.min(offset, size));
+        System.arraycopy(tail.values, tail.offset, newValues, offset, tail.size);
+        return new DoubleTimeSeries(start, granularity, newValues, valueBefore, tail.valueAfter,
+                false);
+    }
+    
+    /**
+     * Check whether this time series contains the same values at the same times as another
+     * one.
+     * @param other
+     * @return true if start, granularity and all values are equal
+     */
+    public boolean hasSameValues(DoubleTimeSeries other) {
+        if (startMillis != other.startMillis || granularityMillis != other.granularityMillis ||
+                size != other.size)
+            return false;
+        for (int i = 0; i < size; i++) {
+            if (Double.compare(values[offset + i], other.values[other.offset + i]) != 0)
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Get a read-only view on the entries with index {@code fromIndex} (inclusive) to
+     * {@code toIndex} (exclusive). The view shares the values with this time series; nothing is
+     * copied. Outside the view, the values before and after this time series are returned.
+     * @param fromIndex
+     * @param toIndex
+     * @return the view
+     */
+    public DoubleTimeSeries slice(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("Slice " + fromIndex + " to " + toIndex +
+                    " of time series with size " + size + ".");
+        return new DoubleTimeSeries(this, fromIndex, toIndex);
+    }
+    
+    /**
+     * Get a read-only view on all entries which overlap with the time interval of length
+     * {@code horizon} beginning at {@code from}, as far as they are contained in this time
+     * series. Nothing is copied.
+     * @param from
+     * @param horizon
+     * @return the view
+     */
+    public DoubleTimeSeries window(LocalDateTime from, Duration horizon) {
+        long fromMillis = TimeUtils.toEpochMillis(from);
+        long toMillis = fromMillis + horizon.toMillis();
+        int fromIndex = TimeUtils.clip(
+                TimeUtils.floorIndex(startMillis, granularityMillis, fromMillis), 0, size);
+        int toIndex = TimeUtils.clip(
+                TimeUtils.ceilIndex(startMillis, granularityMillis, toMillis), fromIndex, size);
+        return slice(fromIndex, toIndex);
+    }
+    
+    /**
+     * Get the average of all known values.
+     * @return the average, or {@code NaN} if no value is known
+     */
+    public double average() {
+        double sum = 0.;
+        int count = 0;
+        for (int i = offset; i < offset + size; i++) {
+            double v = values[i];
+            if (!Double.isNaN(v)) {
+                sum += v;
+                count++;
+            }
+        }
+        return (count > 0) ? sum / count : Double.NaN;
+    }
+    
+    /**
+     * Get the value at a certain time. Times between sampling points are possible; the value is
+     * assumed to be constant between these points.
+     * @param time
+     * @return the value at this time
+     */
+    public double getValueAt(LocalDateTime time) {
+        return getValueAt(TimeUtils.toEpochMillis(time));
+    }
+    
+    /**
+     * Get the value at a certain time given in milliseconds since the epoch; does not allocate.
+     * @param epochMillis
+     * @return the value at this time
+     */
+    public double getValueAt(long epochMillis) {
+        long pos = TimeUtils.floorIndex(startMillis, granularityMillis, epochMillis);
+        if (pos < 0) {
+            return valueBefore;
+        } else if (pos >= size) {
+            return valueAfter;
+        } else {
+            return values[offset + (int) pos];
+        }
+    }
+    
+    /**
+     * Get the value with a certain index.
+     * @param index between 0 (inclusive) and {@code size()} (exclusive)
+     * @return the value
+     */
+    public double getAsDouble(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " of time series with size " +
+                    size + ".");
+        return values[offset + index];
+    }
+    
+    /**
+     * Get the time at which the entry with a certain index begins.
+     * @param index
+     * @return the time
+     */
+    public LocalDateTime getTime(int index) {
+        return TimeUtils.ofEpochMillis(startMillis + index * granularityMillis);
+    }
+    
+    /**
+     * Get the start time of this time series.
+     * @return the start time
+     */
+    public LocalDateTime getStart() {
+        return start;
+    }
+    
+    /**
+     * Get the end time of this time series.
+     * @return the end time
+     */
+    public LocalDateTime getEnd() {
+        return getTime(size);
+    }
+    
+    /**
+     * @return the granularity
+     */
+    public Duration getGranularity() {
+        return granularity;
+    }
+    
+    /**
+     * Get a copy of all values in this time series.
+     * @return the values
+     */
+    public double[] toArray() {
+        return Arrays.copyOfRange(values, offset, offset + size);
+    }
+    
+    /**
+     * Copy the values of this time series into an existing array.
+     * @param dest the destination array, which must have at least {@code size()} elements
+     */
+    public void copyTo(double[] dest) {
+        System.arraycopy(values, offset, dest, 0, size);
+    }
+    
+    /**
+     * Get the number of entries in this time series.
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+    
+    @Override
+    public String toString() {
+        return "[" + start + ", " + granularity + ", " + Arrays.toString(toArray()) + "]";
+    }
+    
+}
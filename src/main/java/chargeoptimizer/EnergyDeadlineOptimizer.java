@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.BitSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An optimizer that delivers a certain amount of energy until a deadline at minimum cost, while
+ * switching the charger on and off only a limited number of times. Charging is enabled after the
+ * deadline.
+ *
+ * The plan is found by dynamic programming over the time slots; the state consists of the number
+ * of slots charged so far, the number of charging blocks started so far and whether charging is
+ * enabled in the current slot. Only two layers of costs are kept in memory, together with one
+ * bit per slot and state for reconstructing the plan. The number of blocks is reduced until
+ * this table fits into its size limit; a plan with a single block is the cheapest window of
+ * consecutive slots, which is found without the table.
+ */
+public class EnergyDeadlineOptimizer implements Optimizer {
+    
+    final Logger logger = LoggerFactory.getLogger(EnergyDeadlineOptimizer.class);
+    
+    // upper limit for the size of the table used to reconstruct the plan (in bits)
+    private static final long MAX_TABLE_BITS = 64L * 1024 * 1024;
+    
+    private double energy;
+    private double power;
+    private int maxSwitches;
+    private LocalTime deadline;
+    private ZoneId timezone;
+    
+    /**
+     * @param energy the energy to be charged in kWh
+     * @param power the charging power in kW
+     * @param maxSwitches the maximum number of times the charger is switched on or off before
+     * the deadline, at least 2; every block of charging needs two switches, and switching on at
+     * the deadline is not counted
+     * @param deadline the local time until which the energy should be charged, or {@code null}
+     * if the energy should be charged within the optimization time
+     * @param timezone the time zone of {@code deadline}
+     */
+    public EnergyDeadlineOptimizer(double energy, double power, int maxSwitches,
+            LocalTime deadline, ZoneId timezone) {
+        checkMaxSwitches(maxSwitches);
+        this.energy = energy;
+        this.power = power;
+        this.maxSwitches = maxSwitches;
+        this.deadline = deadline;
+        this.timezone = timezone;
+        
+        logger.info("energy = " + energy + " kWh, power = " + power + " kW, maxSwitches = " +
+                maxSwitches + ", deadline = " + deadline + ", timezone = " + timezone);
+    }
+    
+    @Override
+    public ChargingSchedule optimize(DoubleTimeSeries costs) {
+        return optimize(costs, energy, deadlineAfter(costs.getStart()));
+    }
+    
+    /**
+     * Only the part of the energy that has not been charged according to the previous plan is
+     * distributed over the remaining time. The deadline stays the one of the previous plan; if
+     * it has passed, charging is enabled all the time.
+     */
+    @Override
+    public ChargingSchedule reoptimize(DoubleTimeSeries costs, ChargingSchedule previous) {
+        LocalDateTime deadlineTime = deadlineAfter(previous.getStart());
+        if (deadlineTime != null && !deadlineTime.isAfter(costs.getStart())) {
+            BitSet enabled = new BitSet(costs.size());
+            enabled.set(0, costs.size());
+            return new ChargingSchedule(costs.getStart(), costs.getGranularity(), enabled,
+                    costs.size(), false, true);
+        }
+        
+        Duration committed = previous.enabledTimeBetween(previous.getStart(), costs.getStart());
+        double remaining = energy - power * committed.toMillis() / 3.6e6;
+        return optimize(costs, Math.max(0., remaining), deadlineTime);
+    }
+    
+    private ChargingSchedule optimize(DoubleTimeSeries costs, double energy,
+            LocalDateTime deadlineTime) {
+        int n = costs.size();
+        double avg = costs.average();
+        if (Double.isNaN(avg)) avg = 0.;
+        
+        int slots = deadlineIndex(costs, deadlineTime);
+        int needed = slotsNeeded(energy, costs.getGranularity());
+        BitSet enabled = new BitSet(n);
+        
+        if (needed > slots) {
+            logger.warn("Cannot charge " + energy + " kWh until the deadline; charging as much " +
+                    "as possible.");
+            enabled.set(0, n);
+        } else {
+            int blocks = Math.min(maxSwitches / 2, Math.max(1, needed));
+            while (blocks > 1 &&
+                    (long) slots * stateCount(needed, blocks) > MAX_TABLE_BITS)
+                blocks--;
+            if (blocks == 1)
+                planWindow(costs, avg, slots, needed, enabled);
+            else
+                plan(costs, avg, slots, needed, blocks, enabled);
+            enabled.set(slots, n);
+        }
+        
+        return new ChargingSchedule(costs.getStart(), costs.getGranularity(), enabled, n,
+                false, true);
+    }
+    
+    /**
+     * Find the cheapest plan with exactly {@code needed} enabled slots among the first
+     * {@code slots} slots, consisting of at most {@code blocks} blocks of consecutive slots.
+     */
+    private void plan(DoubleTimeSeries costs, double avg, int slots, int needed, int blocks,
+            BitSet enabled) {
+        if (needed == 0)
+            return;
+        
+        int states = stateCount(needed, blocks);
+        double[] prev = new double[states];
+        double[] cur = new double[states];
+        // for every slot and state: was charging enabled in the previous slot?
+        BitSet fromOn = new BitSet(slots * states);
+        
+        Arrays.fill(prev, Double.POSITIVE_INFINITY);
+        prev[state(0, 0, false, needed)] = 0.;
+        
+        for (int i = 0; i < slots; i++) {
+            double cost = costOrAvg(costs, avg, i);
+            int base = i * states;
+            
+            for (int b = 0; b <= blocks; b++) {
+                for (int c = 0; c <= needed; c++) {
+                    // charging disabled in slot i
+                    int sOff = state(c, b, false, needed);
+                    double viaOff = prev[sOff];
+                    double viaOn = prev[state(c, b, true, needed)];
+                    if (viaOn < viaOff) {
+                        cur[sOff] = viaOn;
+                        fromOn.set(base + sOff);
+                    } else {
+                        cur[sOff] = viaOff;
+                    }
+                    
+                    // charging enabled in slot i: continue a block or start a new one
+                    int sOn = state(c, b, true, needed);
+                    double continued = (c > 0) ?
+                            prev[state(c-1, b, true, needed)] : Double.POSITIVE_INFINITY;
+                    double started = (c > 0 && b > 0) ?
+                            prev[state(c-1, b-1, false, needed)] : Double.POSITIVE_INFINITY;
+                    if (continued <= started) {
+                        cur[sOn] = continued + cost;
+                        fromOn.set(base + sOn);
+                    } else {
+                        cur[sOn] = started + cost;
+                    }
+                }
+            }
+            
+            double[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        
+        // find the cheapest final state and follow the decisions backwards
+        int best = -1;
+        for (int b = 0; b <= blocks; b++) {
+            for (int on = 0; on <= 1; on++) {
+                int s = state(needed, b, on == 1, needed);
+                if (best < 0 || prev[s] < prev[best])
+                    best = s;
+            }
+        }
+        
+        int c = needed;
+        int b = best / (2 * (needed + 1));
+        boolean on = (best % 2) == 1;
+        for (int i = slots - 1; i >= 0; i--) {
+            boolean previousOn = fromOn.get(i * states + state(c, b, on, needed));
+            if (on) {
+                enabled.set(i);
+                if (!previousOn) b--;
+                c--;
+            }
+            on = previousOn;
+        }
+    }
+    
+    /**
+     * Find the cheapest window of {@code needed} consecutive slots among the first {@code slots}
+     * slots.
+     */
+    private void planWindow(DoubleTimeSeries costs, double avg, int slots, int needed,
+            BitSet enabled) {
+        if (needed == 0)
+            return;
+        
+        double sum = 0.;
+        double bestSum = Double.POSITIVE_INFINITY;
+        int bestStart = 0;
+        for (int i = 0; i < slots; i++) {
+            sum += costOrAvg(costs, avg, i);
+            if (i >= needed)
+                sum -= costOrAvg(costs, avg, i - needed);
+            if (i >= needed - 1 && sum < bestSum) {
+                bestSum = sum;
+                bestStart = i - needed + 1;
+            }
+        }
+        enabled.set(bestStart, bestStart + needed);
+    }
+    
+    private static double costOrAvg(DoubleTimeSeries costs, double avg, int index) {
+        double cost = costs.getAsDouble(index);
+        return Double.isNaN(cost) ? avg : cost;
+    }
+    
+    private static void checkMaxSwitches(int maxSwitches) {
+        if (maxSwitches < 2)
+            throw new IllegalArgumentException("maxSwitches must be at least 2, but is " +
+                    maxSwitches + ".");
+    }
+    
+    private static int stateCount(int needed, int blocks) {
+        return (blocks + 1) * (needed + 1) * 2;
+    }
+    
+    private static int state(int charged, int blocks, boolean on, int needed) {
+        return (blocks * (needed + 1) + charged) * 2 + (on ? 1 : 0);
+    }
+    
+    /**
+     * Calculate the number of slots needed to charge the energy.
+     */
+    private int slotsNeeded(double energy, Duration granularity) {
+        double energyPerSlot = power * granularity.toMillis() / 3.6e6;
+        if (energyPerSlot <= 0)
+            return 0;
+        // allow for rounding errors
+        return (int) Math.ceil(energy / energyPerSlot - 1e-9);
+    }
+    
+    /**
+     * Calculate the first deadline after the start of a plan.
+     * @param start the UTC start time of the plan
+     * @return the UTC time of the deadline, or null if there is no deadline
+     */
+    private LocalDateTime deadlineAfter(LocalDateTime start) {
+        if (deadline == null)
+            return null;
+        
+        ZonedDateTime startLocal = start.atZone(TimeUtils.UTC).withZoneSameInstant(timezone);
+        ZonedDateTime deadlineLocal = startLocal.with(deadline);
+        if (!deadlineLocal.isAfter(startLocal))
+            deadlineLocal = deadlineLocal.plusDays(1);
+        return deadlineLocal.withZoneSameInstant(TimeUtils.UTC).toLocalDateTime();
+    }
+    
+    /**
+     * Calculate the number of slots which end before or at the deadline.
+     */
+    private int deadlineIndex(DoubleTimeSeries costs, LocalDateTime deadlineTime) {
+        int n = costs.size();
+        if (deadlineTime == null)
+            return n;
+        
+        long index = TimeUtils.floorIndex(TimeUtils.toEpochMillis(costs.getStart()),
+                TimeUtils.granularityMillis(costs.getGranularity()),
+                TimeUtils.toEpochMillis(deadlineTime));
+        return TimeUtils.clip(index, 0, n);
+    }
+    
+    public double getEnergy() {
+        return energy;
+    }
+    
+    public void setEnergy(double energy) {
+        this.energy = energy;
+    }
+    
+    public double getPower() {
+        return power;
+    }
+    
+    public void setPower(double power) {
+        this.power = power;
+    }
+    
+    public int getMaxSwitches() {
+        return maxSwitches;
+    }
+    
+    public void setMaxSwitches(int maxSwitches) {
+        checkMaxSwitches(maxSwitches);
+        this.maxSwitches = maxSwitches;
+    }
+    
+    public LocalTime getDeadline() {
+        return deadline;
+    }
+    
+    public void setDeadline(LocalTime deadline) {
+        this.deadline = deadline;
+    }
+    
+}
@@ -16,14 +16,38 @@
  */
 package chargeoptimizer;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
 import java.util.HashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Supplies average price data; useful when no internet connection is available.
+ * 
+ * The prices are taken from a binary profile with separate averages for every month, weekday
+ * and time slot of the day, as written by {@link EntsoeAvgPricesCalculator}. The profile is
+ * read from a file or from the classpath resource {@value #PROFILE_RESOURCE}. A file is
+ * memory-mapped, and the prices are looked up in the mapped file without copying them. If
+ * neither is available, or if the profile does not contain the area, the hourly averages below
+ * are used for every day.
+ * 
+ * The UTC offsets of the time zone are precomputed for some decades around the present, so
+ * that a lookup needs no time zone conversion.
  */
 public class EntsoeAvgPrices implements CostSource {
     
@@ -31,7 +55,29 @@ public class EntsoeAvgPrices implements CostSource {
     
     private final String areaEIC;
     private final ZoneId timezone;
-
+    
+    static final String PROFILE_RESOURCE = "/entsoe_avg_prices.bin";
+    // "EAVP"
+    static final int PROFILE_MAGIC = 0x45415650;
+    static final int PROFILE_VERSION = 1;
+    static final int EIC_LENGTH = 16;
+    static final int MONTHS = 12;
+    static final int WEEKDAYS = 7;
+    
+    // years before and after the present for which the UTC offsets are precomputed
+    private static final int TRANSITION_YEARS = 30;
+    
+    // prices indexed by profileIndex(), or null if the hourly averages are used
+    private final FloatBuffer profile;
+    private final double[] hourlyPrices;
+    private final int slotsPerDay;
+    
+    // offsetMillis[i] is valid from transitionMillis[i] (inclusive) to transitionMillis[i+1]
+    private final long[] transitionMillis;
+    private final long[] offsetMillis;
+    private final long transitionsStart;
+    private final long transitionsEnd;
+    
     // average hourly prices from 2019-06-10 to 2020-06-09
     static final HashMap<String, double[]> areaPrices = new HashMap<>();
     static {
@@ -73,7 +119,7 @@ public class EntsoeAvgPrices implements CostSource {
         areaPrices.put("10YLT-1001A0008Q", new double[]{26.0, 25.9, 23.6, 22.5, 22.3, 23.2, 27.5, 37.2, 43.6, 47.6, 47.0, 46.0, 44.9, 45.9, 45.2, 43.1, 42.5, 43.4, 44.5, 46.5, 44.1, 39.3, 36.2, 31.0});
         areaPrices.put("10YRO-TEL------P", new double[]{172.5, 168.7, 146.9, 132.1, 126.7, 131.2, 155.8, 195.3, 237.8, 246.3, 236.9, 224.1, 220.4, 220.3, 212.2, 211.5, 221.4, 242.4, 259.0, 272.7, 286.2, 276.9, 235.1, 209.9});
     }
-
+    
     /**
      * Average day-ahead prices for a certain area. For the area EIC codes see {@link EICCodes}.
      * The time zone is used to calculate the local start and end of day.
@@ -81,18 +127,233 @@ public class EntsoeAvgPrices implements CostSource {
      * @param timezone
      */
     public EntsoeAvgPrices(String areaEIC, ZoneId timezone) {
-        if (!areaPrices.containsKey(areaEIC))
-            throw new IllegalArgumentException("Prices for area EIC " + areaEIC + " not available.");
+        this(areaEIC, timezone, null);
+    }
+    
+    /**
+     * Average day-ahead prices for a certain area, taken from a profile file written by
+     * {@link EntsoeAvgPricesCalculator}.
+     * @param areaEIC
+     * @param timezone
+     * @param profileFile the profile, or null to use the classpath resource
+     */
+    public EntsoeAvgPrices(String areaEIC, ZoneId timezone, Path profileFile) {
         this.areaEIC = areaEIC;
         this.timezone = timezone;
         
-        logger.info("areaEIC = " + areaEIC + ", timezone = " + timezone);
+        FloatBuffer fromFile = null;
+        int fileSlotsPerDay = 0;
+        ByteBuffer buffer = (profileFile != null) ? mapProfile(profileFile) :
+                ResourceProfile.BUFFER;
+        if (buffer != null) {
+            try {
+                fileSlotsPerDay = buffer.getInt(8);
+                fromFile = readProfile(buffer, areaEIC);
+            } catch (RuntimeException ex) {
+                logger.warn("Invalid price profile: " + ex);
+            }
+        }
+        
+        profile = fromFile;
+        if (fromFile != null) {
+            hourlyPrices = null;
+            slotsPerDay = fileSlotsPerDay;
+        } else {
+            hourlyPrices = areaPrices.get(areaEIC);
+            if (hourlyPrices == null)
+                throw new IllegalArgumentException("Prices for area EIC " + areaEIC +
+                        " not available.");
+            slotsPerDay = hourlyPrices.length;
+        }
+        
+        // precompute the UTC offsets
+        ZoneRules rules = timezone.getRules();
+        ZonedDateTime now = ZonedDateTime.now(timezone);
+        Instant from = now.minusYears(TRANSITION_YEARS).toInstant();
+        Instant to = now.plusYears(TRANSITION_YEARS).toInstant();
+        long[] transitions = new long[16];
+        long[] offsets = new long[16];
+        transitions[0] = Long.MIN_VALUE;
+        offsets[0] = rules.getOffset(from).getTotalSeconds() * 1000L;
+        int count = 1;
+        for (ZoneOffsetTransition t = rules.nextTransition(from);
+                t != null && t.getInstant().isBefore(to);
+                t = rules.nextTransition(t.getInstant())) {
+            if (count == transitions.length) {
+                transitions = Arrays.copyOf(transitions, 2 * count);
+                offsets = Arrays.copyOf(offsets, 2 * count);
+            }
+            transitions[count] = t.toEpochSecond() * 1000;
+            offsets[count] = t.getOffsetAfter().getTotalSeconds() * 1000L;
+            count++;
+        }
+        transitionMillis = Arrays.copyOf(transitions, count);
+        offsetMillis = Arrays.copyOf(offsets, count);
+        transitionsStart = from.toEpochMilli();
+        transitionsEnd = to.toEpochMilli();
+        
+        logger.info("areaEIC = " + areaEIC + ", timezone = " + timezone + ", " +
+                ((fromFile != null) ? "profile with " + slotsPerDay + " slots per day" :
+                        "hourly averages"));
     }
     
     @Override
     public Double getCostAt(LocalDateTime time) {
-        int hour = time.atZone(TimeUtils.UTC).withZoneSameInstant(timezone).getHour();
-        return areaPrices.get(areaEIC)[hour];
+        long epochMillis = TimeUtils.toEpochMillis(time);
+        int i = transitionIndex(epochMillis);
+        return price(profileIndex(epochMillis + offsetAt(i, epochMillis), slotsPerDay));
+    }
+    
+    /**
+     * Looks up the prices directly; the index of the UTC offset only advances at offset
+     * transitions (e.g. daylight saving time).
+     */
+    @Override
+    public DoubleTimeSeries getCosts(LocalDateTime start, LocalDateTime end,
+            Duration granularity) {
+        long startMillis = TimeUtils.toEpochMillis(start);
+        long granularityMillis = TimeUtils.granularityMillis(granularity);
+        int n = (int) Math.max(0, TimeUtils.ceilIndex(startMillis, granularityMillis,
+                TimeUtils.toEpochMillis(end)));
+        double[] values = new double[n];
+        
+        int t = transitionIndex(startMillis);
+        for (int i = 0; i < n; i++) {
+            long time = startMillis + i * granularityMillis;
+            while (t + 1 < transitionMillis.length && time >= transitionMillis[t + 1])
+                t++;
+            values[i] = price(profileIndex(time + offsetAt(t, time), slotsPerDay));
+        }
+        return new DoubleTimeSeries(start, granularity, values);
+    }
+    
+    /**
+     * The profile is read when the object is created.
+     */
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+    
+    /**
+     * Get a price from the profile; the hourly averages are the same for every month and
+     * weekday.
+     */
+    private double price(int profileIndex) {
+        if (profile == null)
+            return hourlyPrices[profileIndex % slotsPerDay];
+        return profile.get(profileIndex);
+    }
+    
+    /**
+     * Find the precomputed offset which is valid at a certain time.
+     */
+    private int transitionIndex(long epochMillis) {
+        int i = Arrays.binarySearch(transitionMillis, epochMillis);
+        return (i >= 0) ? i : -i - 2;
+    }
+    
+    /**
+     * Get the UTC offset at a certain time, given the index of the precomputed offset; times
+     * outside the precomputed range are looked up in the zone rules.
+     */
+    private long offsetAt(int transitionIndex, long epochMillis) {
+        if (epochMillis < transitionsStart || epochMillis >= transitionsEnd)
+            return timezone.getRules().getOffset(Instant.ofEpochMilli(epochMillis))
+                    .getTotalSeconds() * 1000L;
+        return offsetMillis[transitionIndex];
+    }
+    
+    /**
+     * Calculate the position of a local time in a profile, which is ordered by month, weekday
+     * (starting with Monday) and slot of the day.
+     * @param localMillis the local time in milliseconds since the local epoch
+     * @param slotsPerDay
+     * @return the index in the profile
+     */
+    static int profileIndex(long localMillis, int slotsPerDay) {
+        long day = Math.floorDiv(localMillis, TimeUtils.MILLIS_PER_DAY);
+        int weekday = Math.floorMod(day + 3, WEEKDAYS);
+        int slot = (int) (Math.floorMod(localMillis, TimeUtils.MILLIS_PER_DAY) * slotsPerDay /
+                TimeUtils.MILLIS_PER_DAY);
+        return ((monthOfEpochDay(day) - 1) * WEEKDAYS + weekday) * slotsPerDay + slot;
+    }
+    
+    /**
+     * Calculate the month (1 to 12) of a day in the proleptic Gregorian calendar, without
+     * creating a LocalDate.
+     */
+    static int monthOfEpochDay(long epochDay) {
+        // shift to eras of 400 years which begin on March 1st
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthFromMarch = (int) ((5 * dayOfYear + 2) / 153);
+        return (monthFromMarch < 10) ? monthFromMarch + 3 : monthFromMarch - 9;
+    }
+    
+    /**
+     * Read the prices of an area from a profile. The profile starts with a header (magic
+     * number, version, slots per day and number of areas), followed by the EIC code of every
+     * area (16 ASCII characters) together with the position of its prices. The prices of an
+     * area are stored as floats, ordered as described for {@link #profileIndex}.
+     * @param buffer
+     * @param areaEIC
+     * @return a view of the prices in the buffer, or null if the profile does not contain the
+     * area
+     */
+    static FloatBuffer readProfile(ByteBuffer buffer, String areaEIC) {
+        if (buffer.getInt(0) != PROFILE_MAGIC || buffer.getInt(4) != PROFILE_VERSION)
+            throw new IllegalArgumentException("Unknown profile format.");
+        int slotsPerDay = buffer.getInt(8);
+        int areas = buffer.getInt(12);
+        byte[] eic = new byte[EIC_LENGTH];
+        for (int area = 0; area < areas; area++) {
+            int entry = 16 + area * (EIC_LENGTH + 4);
+            for (int i = 0; i < EIC_LENGTH; i++)
+                eic[i] = buffer.get(entry + i);
+            if (!new String(eic, StandardCharsets.US_ASCII).equals(areaEIC))
+                continue;
+            
+            int position = buffer.getInt(entry + EIC_LENGTH);
+            ByteBuffer prices = buffer.duplicate();
+            prices.position(position);
+            prices.limit(position + 4 * MONTHS * WEEKDAYS * slotsPerDay);
+            return prices.slice().asFloatBuffer();
+        }
+        return null;
+    }
+    
+    /**
+     * Map a profile file into memory.
+     */
+    private ByteBuffer mapProfile(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException ex) {
+            logger.warn("Could not read price profile " + file + ": " + ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Holds the profile from the classpath; it is only read when the first instance without a
+     * profile file is created.
+     */
+    private static class ResourceProfile {
+        static final ByteBuffer BUFFER = load();
+        
+        private static ByteBuffer load() {
+            try (InputStream in = EntsoeAvgPrices.class.getResourceAsStream(PROFILE_RESOURCE)) {
+                return (in != null) ? ByteBuffer.wrap(in.readAllBytes()) : null;
+            } catch (IOException ex) {
+                LoggerFactory.getLogger(EntsoeAvgPrices.class).warn(
+                        "Could not read price profile " + PROFILE_RESOURCE + ": " + ex);
+                return null;
+            }
+        }
     }
 
 }
@@ -16,63 +16,95 @@
  */
 package chargeoptimizer;
 
+import chargeoptimizer.EntsoeDayAhead.FetchState;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDateTime;
 import java.time.Period;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Calculate average ENTSOE day-ahead prices for the EntsoeAvgPrices class.
+ * 
+ * The time range is split into chunks which are fetched in parallel for all areas, with a
+ * limited number of concurrent requests and a minimum interval between the start of two
+ * requests. The prices of each chunk go directly into the statistics of its area, which are
+ * kept per month, weekday and hour of the day.
+ * 
+ * The hourly averages are printed as Java source; if an output file is given, the complete
+ * profile is also written to it in the binary format read by EntsoeAvgPrices.
  */
 public class EntsoeAvgPricesCalculator {
 
     static final Period AVGEXTENT = Period.of(1, 0, 0);
     static final int HOURS = 24;
+    static final int PROFILE_SIZE = EntsoeAvgPrices.MONTHS * EntsoeAvgPrices.WEEKDAYS * HOURS;
+    
+    // time range of a single request
+    static final Period CHUNK = Period.ofMonths(1);
+    // maximum number of requests running at the same time
+    static final int CONCURRENCY = 8;
+    // the API allows at most 400 requests per minute
+    static final Duration REQUEST_INTERVAL = Duration.ofMillis(200);
+    static final int MAX_ATTEMPTS = 3;
+    static final Duration RETRY_DELAY = Duration.ofSeconds(5);
     
     /**
-     * @param args the command line arguments
+     * @param args the security token and, optionally, the file for the binary profile
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Please supply security token as the command line parameter.");
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Please supply security token and, optionally, the profile " +
+                    "output file as the command line parameters.");
             System.exit(1);
         }
         
-        boolean firstRow = true;
-        for (EICCodes.AreaInfo areaInfo : EICCodes.areas.values()) {
-            ZoneId timezone = ZoneId.of(areaInfo.timezone);
-            EntsoeDayAhead prices = new EntsoeDayAhead(areaInfo.eic, timezone, args[0]);
-            
-            // get price data for the previous AVGEXTENT time until and including today
-            ZonedDateTime start = Instant.now().atZone(timezone).truncatedTo(ChronoUnit.DAYS)
-                    .minus(AVGEXTENT).plusDays(1);
-            ZonedDateTime end = start.plus(AVGEXTENT);
-            prices.fetchCosts(start.withZoneSameInstant(TimeUtils.UTC).toLocalDateTime(),
-                    end.withZoneSameInstant(TimeUtils.UTC).toLocalDateTime());
-            
-            // calculate average price per hour
-            DoubleSummaryStatistics[] hourlyStatistics = new DoubleSummaryStatistics[HOURS];
-            for (int hour = 0; hour < HOURS; hour++)
-                hourlyStatistics[hour] = new DoubleSummaryStatistics();
-            
-            prices.getPrices().forEach((time, price) -> {
-                int hour = time.atZone(TimeUtils.UTC).withZoneSameInstant(timezone).getHour();
-                hourlyStatistics[hour].accept(price);                
-            });
-            
-            // print for use in EntsoeAvgPrices
-            if (firstRow) {
-                System.out.println("    // average hourly prices from " +
-                        start.toLocalDate().format(DateTimeFormatter.ISO_DATE) + " to " + 
-                        end.minusDays(1).toLocalDate().format(DateTimeFormatter.ISO_DATE));
-                System.out.println("    static final HashMap<String, double[]> areaPrices = new HashMap<>();");
-                System.out.println("    static {");
-                firstRow = false;
-            }
-            
+        List<EICCodes.AreaInfo> areas = new ArrayList<>(EICCodes.areas.values());
+        Instant now = Instant.now();
+        List<DoubleSummaryStatistics[]> areaStatistics = null;
+        try {
+            areaStatistics = calculateStatistics(areas, args[0], null, now, CONCURRENCY,
+                    REQUEST_INTERVAL);
+        } catch (InterruptedException | ExecutionException ex) {
+            System.err.println("Could not fetch prices: " + ex);
+            System.exit(1);
+        }
+        ZonedDateTime firstStart = rangeStart(now, ZoneId.of(areas.get(0).timezone));
+        ZonedDateTime firstEnd = firstStart.plus(AVGEXTENT);
+        
+        // print for use in EntsoeAvgPrices
+        System.out.println("    // average hourly prices from " +
+                firstStart.toLocalDate().format(DateTimeFormatter.ISO_DATE) + " to " + 
+                firstEnd.minusDays(1).toLocalDate().format(DateTimeFormatter.ISO_DATE));
+        System.out.println("    static final HashMap<String, double[]> areaPrices = new HashMap<>();");
+        System.out.println("    static {");
+        
+        int area = 0;
+        for (EICCodes.AreaInfo areaInfo : areas) {
+            DoubleSummaryStatistics[] hourlyStatistics = hourly(areaStatistics.get(area++));
             StringBuilder s = new StringBuilder("        areaPrices.put(\""+ areaInfo.eic +
                     "\", new double[]{");
             for (int hour = 0; hour < HOURS; hour++) {
@@ -85,6 +117,206 @@ public class EntsoeAvgPricesCalculator {
         }
         
         System.out.println("    }");
+        
+        if (args.length == 2) {
+            try {
+                writeProfile(args[1], areas, areaStatistics);
+            } catch (IOException ex) {
+                System.err.println("Could not write profile: " + ex);
+                System.exit(1);
+            }
+        }
+    }
+    
+    /**
+     * Fetch the prices of the previous {@code AVGEXTENT} until and including the current day of
+     * every area and collect them per month, weekday and hour of the day.
+     * @param areas
+     * @param securityToken
+     * @param baseUrl the URL of the API, or null for the ENTSO-E server
+     * @param now the current time
+     * @param concurrency maximum number of requests running at the same time
+     * @param requestInterval minimum interval between the start of two requests
+     * @return the statistics of every area, in the order of {@code areas}
+     * @throws InterruptedException
+     * @throws ExecutionException 
+     */
+    static List<DoubleSummaryStatistics[]> calculateStatistics(List<EICCodes.AreaInfo> areas,
+            String securityToken, String baseUrl, Instant now, int concurrency,
+            Duration requestInterval) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        RateLimiter rateLimiter = new RateLimiter(requestInterval);
+        List<DoubleSummaryStatistics[]> areaStatistics = new ArrayList<>();
+        List<Future<?>> tasks = new ArrayList<>();
+        
+        try {
+            for (EICCodes.AreaInfo areaInfo : areas) {
+                ZoneId timezone = ZoneId.of(areaInfo.timezone);
+                EntsoeDayAhead prices = new EntsoeDayAhead(areaInfo.eic, timezone,
+                        securityToken);
+                if (baseUrl != null)
+                    prices.setBaseUrl(baseUrl);
+                
+                ZonedDateTime start = rangeStart(now, timezone);
+                ZonedDateTime end = start.plus(AVGEXTENT);
+                
+                DoubleSummaryStatistics[] statistics = new DoubleSummaryStatistics[PROFILE_SIZE];
+                for (int i = 0; i < PROFILE_SIZE; i++)
+                    statistics[i] = new DoubleSummaryStatistics();
+                areaStatistics.add(statistics);
+                
+                for (ZonedDateTime chunkStart = start; chunkStart.isBefore(end); ) {
+                    ZonedDateTime chunkEnd = chunkStart.plus(CHUNK);
+                    if (chunkEnd.isAfter(end))
+                        chunkEnd = end;
+                    LocalDateTime from = chunkStart.withZoneSameInstant(TimeUtils.UTC)
+                            .toLocalDateTime();
+                    LocalDateTime to = chunkEnd.withZoneSameInstant(TimeUtils.UTC)
+                            .toLocalDateTime();
+                    tasks.add(executor.submit(() -> {
+                        fetchChunk(prices, from, to, timezone, statistics, rateLimiter);
+                        return null;
+                    }));
+                    chunkStart = chunkEnd;
+                }
+            }
+            
+            for (Future<?> task : tasks)
+                task.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        return areaStatistics;
+    }
+    
+    /**
+     * Get the start of the previous {@code AVGEXTENT} until and including the current day.
+     */
+    static ZonedDateTime rangeStart(Instant now, ZoneId timezone) {
+        return now.atZone(timezone).truncatedTo(ChronoUnit.DAYS).minus(AVGEXTENT).plusDays(1);
+    }
+    
+    /**
+     * Write the averages in the binary format described in
+     * {@link EntsoeAvgPrices#readProfile}. Slots without any price get the hourly average of
+     * their area.
+     */
+    private static void writeProfile(String file, List<EICCodes.AreaInfo> areas,
+            List<DoubleSummaryStatistics[]> areaStatistics) throws IOException {
+        int position = 16 + areas.size() * (EntsoeAvgPrices.EIC_LENGTH + 4);
+        try (OutputStream out = Files.newOutputStream(Paths.get(file));
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+            data.writeInt(EntsoeAvgPrices.PROFILE_MAGIC);
+            data.writeInt(EntsoeAvgPrices.PROFILE_VERSION);
+            data.writeInt(HOURS);
+            data.writeInt(areas.size());
+            for (EICCodes.AreaInfo areaInfo : areas) {
+                byte[] eic = Arrays.copyOf(areaInfo.eic.getBytes(StandardCharsets.US_ASCII),
+                        EntsoeAvgPrices.EIC_LENGTH);
+                data.write(eic);
+                data.writeInt(position);
+                position += 4 * PROFILE_SIZE;
+            }
+            
+            for (DoubleSummaryStatistics[] statistics : areaStatistics) {
+                DoubleSummaryStatistics[] hourlyStatistics = hourly(statistics);
+                for (int i = 0; i < PROFILE_SIZE; i++)
+                    data.writeFloat((float) ((statistics[i].getCount() > 0) ?
+                            statistics[i].getAverage() :
+                            hourlyStatistics[i % HOURS].getAverage()));
+            }
+        }
+        System.out.println("Profile written to " + file + ".");
+    }
+    
+    /**
+     * Fetch the prices of one chunk, retrying failed requests, and add them to the statistics
+     * of the area.
+     */
+    private static void fetchChunk(EntsoeDayAhead prices, LocalDateTime start, LocalDateTime end,
+            ZoneId timezone, DoubleSummaryStatistics[] statistics, RateLimiter rateLimiter)
+            throws InterruptedException {
+        List<DoubleTimeSeries> periods = new ArrayList<>();
+        for (int attempt = 1; ; attempt++) {
+            rateLimiter.acquire();
+            periods.clear();
+            if (prices.fetchPeriods(start, end, periods::add) != FetchState.FAILED)
+                break;
+            if (attempt == MAX_ATTEMPTS) {
+                System.err.println("Giving up on prices from " + start + " to " + end + ".");
+                return;
+            }
+            Thread.sleep(RETRY_DELAY.toMillis() * attempt);
+        }
+        
+        // calculate average price per month, weekday and hour
+        ZoneRules rules = timezone.getRules();
+        synchronized (statistics) {
+            for (DoubleTimeSeries period : finestPeriods(periods)) {
+                long startMillis = TimeUtils.toEpochMillis(period.getStart());
+                long granularityMillis = TimeUtils.granularityMillis(period.getGranularity());
+                for (int i = 0; i < period.size(); i++) {
+                    double price = period.getAsDouble(i);
+                    if (Double.isNaN(price))
+                        continue;
+                    long time = startMillis + i * granularityMillis;
+                    long offset = rules.getOffset(Instant.ofEpochMilli(time)).getTotalSeconds();
+                    statistics[EntsoeAvgPrices.profileIndex(
+                            time + offset * TimeUtils.MILLIS_PER_SECOND, HOURS)].accept(price);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Combine the statistics of all months and weekdays for every hour of the day.
+     */
+    private static DoubleSummaryStatistics[] hourly(DoubleSummaryStatistics[] statistics) {
+        DoubleSummaryStatistics[] hourlyStatistics = new DoubleSummaryStatistics[HOURS];
+        for (int hour = 0; hour < HOURS; hour++)
+            hourlyStatistics[hour] = new DoubleSummaryStatistics();
+        for (int i = 0; i < PROFILE_SIZE; i++)
+            hourlyStatistics[i % HOURS].combine(statistics[i]);
+        return hourlyStatistics;
+    }
+    
+    /**
+     * Some areas publish the same day in several resolutions; keep only the finest one, so that
+     * no price is counted twice.
+     */
+    private static Collection<DoubleTimeSeries> finestPeriods(List<DoubleTimeSeries> periods) {
+        Map<LocalDateTime, DoubleTimeSeries> finest = new HashMap<>();
+        for (DoubleTimeSeries period : periods)
+            finest.merge(period.getStart(), period, (a, b) ->
+                    (a.getGranularity().compareTo(b.getGranularity()) <= 0) ? a : b);
+        return finest.values();
+    }
+    
+    /**
+     * Spaces the start of requests by a minimum interval.
+     */
+    static class RateLimiter {
+        private final long intervalNanos;
+        private long nextNanos = System.nanoTime();
+        
+        RateLimiter(Duration interval) {
+            intervalNanos = interval.toNanos();
+        }
+        
+        /**
+         * Wait until the next request may start.
+         */
+        void acquire() throws InterruptedException {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long slot = Math.max(now, nextNanos);
+                nextNanos = slot + intervalNanos;
+                waitNanos = slot - now;
+            }
+            if (waitNanos > 0)
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
     }
     
 }
@@ -18,47 +18,383 @@ package chargeoptimizer;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-import javax.net.ssl.HttpsURLConnection;
-import javax.xml.stream.XMLEventReader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Supplies day-ahead price information from the ENTSOE transparency API. The
- * data is cached.
+ * data is cached, with the prices of each local-time day in one array. Prices
+ * in resolutions of 15, 30 or 60 minutes are supported.
+ * 
+ * Requests to the API are made by a background thread, so that queries never
+ * wait for the network; they only return cached data and request missing days
+ * in the background. After {@code startPrefetch()}, the prices of the next day
+ * are also fetched as soon as they are published.
+ * 
+ * If a {@code PriceStore} is set, prices are looked up there before they are
+ * requested from the API, and all fetched prices are written to it.
+ * 
+ * Instances may be shared by several threads. The cache is an immutable
+ * snapshot which is replaced as a whole when prices are added, so queries
+ * never take a lock. Each day is fetched by at most one request at a time;
+ * concurrent misses for the same day share that request.
  */
 public class EntsoeDayAhead implements CostSource {
     
     final Logger logger = LoggerFactory.getLogger(EntsoeDayAhead.class);
     
-    private final TreeMap<LocalDateTime, Double> prices = new TreeMap<>();
+    // cached prices; writers hold cacheLock and publish a new snapshot
+    private volatile PriceCache cache = new PriceCache(new TreeMap<>(), 0);
+    private final Object cacheLock = new Object();
     private final String areaEIC;
     private final ZoneId timezone;
     private final String securityToken;
-    private int maxCacheSize = 5000;
+    // maximum number of cached price slots
+    private volatile int maxCacheSize = 5000;
+    // prices from this time before the start of the current day on are never evicted
+    private volatile Duration retention = Duration.ofDays(1);
+    private volatile long dataVersion = 0;
     
-    // if the server answered BAD REQUEST, for some time do not try again the same request or a
-    // request for an even earlier time
-    private LocalDateTime unavailableDay = null;
-    private LocalDateTime wasUnavailableAt = LocalDateTime.MIN;
-    private Duration coolOffTime = Duration.ofMinutes(5);
+    // local time at which the prices of the next day are usually published
+    private volatile LocalTime publicationTime = LocalTime.of(13, 0);
+    private volatile Duration initialRetryDelay = Duration.ofMinutes(1);
+    private volatile Duration maxRetryDelay = Duration.ofHours(1);
+    private volatile Duration timeout = Duration.ofSeconds(30);
+    private volatile String baseUrl = "https://web-api.tp.entsoe.eu/api";
+    
+    // fetch state of each day, keyed by the UTC start of the local day; the states are
+    // immutable and only replaced atomically
+    private final ConcurrentHashMap<LocalDateTime, DayFetch> fetches =
+            new ConcurrentHashMap<>();
+    // guarded by this
+    private ScheduledExecutorService fetchExecutor;
+    private volatile boolean prefetching = false;
+    private volatile PriceStore priceStore;
+    private final List<Consumer<DoubleTimeSeries>> priceListeners = new CopyOnWriteArrayList<>();
+    
+    private static final Duration DEFAULT_RESOLUTION = Duration.ofHours(1);
+    // curve type in which omitted positions repeat the previous price
+    private static final String CURVE_TYPE_VARIABLE_BLOCKS = "A03";
     
     private static final DateTimeFormatter DATE_FORMAT =
             DateTimeFormatter.ofPattern("yyyyMMddHHmm");
     
+    // all instances share the connections to the server
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .connectTimeout(CONNECT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    // retries of a single request after server errors; longer outages are handled by the
+    // retry delays of the fetch states
+    private static final int REQUEST_ATTEMPTS = 3;
+    private static final Duration REQUEST_RETRY_DELAY = Duration.ofSeconds(1);
+    private static final Duration MAX_REQUEST_RETRY_DELAY = Duration.ofSeconds(60);
+    
+    // the factory is configured once and only used to create readers afterwards
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+    
+    // up to this number of digits, decimal numbers are converted exactly by a single division
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = new double[MAX_EXACT_DIGITS + 1];
+    static {
+        POWERS_OF_TEN[0] = 1.;
+        for (int i = 1; i <= MAX_EXACT_DIGITS; i++)
+            POWERS_OF_TEN[i] = 10. * POWERS_OF_TEN[i-1];
+    }
+    
+    /**
+     * The state of the prices of one day.
+     */
+    public enum FetchState {
+        /** the prices have not been requested yet */
+        UNKNOWN,
+        /** a request is running or about to run */
+        PENDING,
+        /** the prices are in the cache */
+        AVAILABLE,
+        /** the prices have not been published yet; they are requested again later */
+        NOT_YET_PUBLISHED,
+        /** the last request failed; it is repeated with increasing delays */
+        FAILED
+    }
+    
+    private static class DayFetch {
+        static final DayFetch NEW = new DayFetch(FetchState.UNKNOWN, null, 0, 0);
+        
+        final FetchState state;
+        // completed when the running request has finished; null if there is none
+        final CompletableFuture<FetchState> inFlight;
+        final int failures;
+        final long nextAttemptMillis;
+        
+        DayFetch(FetchState state, CompletableFuture<FetchState> inFlight, int failures,
+                long nextAttemptMillis) {
+            this.state = state;
+            this.inFlight = inFlight;
+            this.failures = failures;
+            this.nextAttemptMillis = nextAttemptMillis;
+        }
+        
+        DayFetch withInFlight(CompletableFuture<FetchState> inFlight) {
+            return new DayFetch(state, inFlight, failures, nextAttemptMillis);
+        }
+        
+        DayFetch withNextAttempt(long nextAttemptMillis) {
+            return new DayFetch(state, inFlight, failures, nextAttemptMillis);
+        }
+    }
+    
+    /**
+     * An immutable snapshot of the cached prices, keyed by the UTC start of the local day.
+     */
+    private static class PriceCache {
+        final TreeMap<LocalDateTime, DayPrices> days;
+        // the number of cached price slots
+        final int size;
+        
+        PriceCache(TreeMap<LocalDateTime, DayPrices> days, int size) {
+            this.days = days;
+            this.size = size;
+        }
+        
+        /**
+         * Look up a price.
+         * @param time UTC time
+         * @return the price, or NaN if it is not cached
+         */
+        double priceAt(LocalDateTime time) {
+            Map.Entry<LocalDateTime, DayPrices> entry = days.floorEntry(time);
+            long epochMillis = TimeUtils.toEpochMillis(time);
+            if (entry == null || epochMillis >= entry.getValue().endMillis)
+                return Double.NaN;
+            return entry.getValue().get(epochMillis);
+        }
+        
+        /**
+         * Check whether all prices of a day are cached.
+         * @param dayStart UTC time of the start of the local-time day
+         */
+        boolean isComplete(LocalDateTime dayStart) {
+            DayPrices dayPrices = days.get(dayStart);
+            return dayPrices != null && dayPrices.isComplete();
+        }
+    }
+    
+    /**
+     * The prices of one local-time day in slots of equal length; unknown prices are NaN. If
+     * prices of different resolutions are added, the slots are refined as necessary, and prices
+     * of a finer resolution take precedence. Once an object is part of a published
+     * {@code PriceCache}, it is not modified any more; new prices go into a copy.
+     */
+    private static class DayPrices {
+        final long startMillis;
+        final long endMillis;
+        long resolutionMillis;
+        // the finest resolution of the prices added so far
+        long sourceResolutionMillis = Long.MAX_VALUE;
+        double[] values;
+        int known = 0;
+        
+        DayPrices(long startMillis, long endMillis, long resolutionMillis) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.resolutionMillis = resolutionMillis;
+            values = new double[slotCount(resolutionMillis)];
+            Arrays.fill(values, Double.NaN);
+        }
+        
+        DayPrices(DayPrices other) {
+            startMillis = other.startMillis;
+            endMillis = other.endMillis;
+            resolutionMillis = other.resolutionMillis;
+            sourceResolutionMillis = other.sourceResolutionMillis;
+            values = other.values.clone();
+            known = other.known;
+        }
+        
+        double get(long epochMillis) {
+            return values[(int) ((epochMillis - startMillis) / resolutionMillis)];
+        }
+        
+        boolean isComplete() {
+            return known == values.length;
+        }
+        
+        /**
+         * Add the part of {@code period} which lies within this day.
+         */
+        void put(DoubleTimeSeries period) {
+            long periodStart = TimeUtils.toEpochMillis(period.getStart());
+            long periodResolution = TimeUtils.granularityMillis(period.getGranularity());
+            long common = gcd(resolutionMillis, periodResolution);
+            if (common < resolutionMillis)
+                refine(common);
+            boolean overwrite = periodResolution <= sourceResolutionMillis;
+            sourceResolutionMillis = Math.min(sourceResolutionMillis, periodResolution);
+            
+            int from = TimeUtils.clip(
+                    TimeUtils.floorIndex(periodStart, periodResolution, startMillis),
+                    0, period.size());
+            int to = TimeUtils.clip(
+                    TimeUtils.ceilIndex(periodStart, periodResolution, endMillis),
+                    0, period.size());
+            for (int j = from; j < to; j++) {
+                double value = period.getAsDouble(j);
+                if (Double.isNaN(value))
+                    continue;
+                long slotStart = Math.max(periodStart + j * periodResolution, startMillis);
+                long slotEnd = Math.min(slotStart + periodResolution, endMillis);
+                int last = (int) TimeUtils.ceilIndex(startMillis, resolutionMillis, slotEnd);
+                for (int i = (int) ((slotStart - startMillis) / resolutionMillis); i < last; i++) {
+                    if (Double.isNaN(values[i])) {
+                        values[i] = value;
+                        known++;
+                    } else if (overwrite) {
+                        values[i] = value;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Split the slots into slots of a finer resolution which divides the current one.
+         */
+        private void refine(long resolution) {
+            int factor = (int) (resolutionMillis / resolution);
+            double[] refined = new double[slotCount(resolution)];
+            known = 0;
+            for (int i = 0; i < refined.length; i++) {
+                refined[i] = values[i / factor];
+                if (!Double.isNaN(refined[i]))
+                    known++;
+            }
+            values = refined;
+            resolutionMillis = resolution;
+        }
+        
+        private int slotCount(long resolution) {
+            return (int) TimeUtils.ceilIndex(startMillis, resolution, endMillis);
+        }
+        
+        private static long gcd(long a, long b) {
+            while (b != 0) {
+                long t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+    }
+    
+    /**
+     * Collects the points of one {@code Period} element of a market document.
+     */
+    private static class PeriodParser {
+        LocalDateTime start;
+        LocalDateTime end;
+        Duration resolution;
+        private boolean carryForward;
+        private double[] values = new double[100];
+        private int length;
+        private int lastPosition;
+        private double lastValue;
+        
+        PeriodParser() {
+            Arrays.fill(values, Double.NaN);
+            reset(false);
+        }
+        
+        /**
+         * Prepare for a new period.
+         * @param carryForward whether omitted positions repeat the previous price
+         */
+        void reset(boolean carryForward) {
+            Arrays.fill(values, 0, length, Double.NaN);
+            this.carryForward = carryForward;
+            start = null;
+            end = null;
+            resolution = DEFAULT_RESOLUTION;
+            length = 0;
+            lastPosition = 0;
+        }
+        
+        /**
+         * Add the price at a position, which starts counting at 1.
+         */
+        void put(int position, double value) {
+            if (position < 1)
+                return;
+            ensureCapacity(position);
+            if (carryForward && lastPosition > 0 && lastPosition < position - 1)
+                Arrays.fill(values, lastPosition, position - 1, lastValue);
+            values[position - 1] = value;
+            length = Math.max(length, position);
+            lastPosition = position;
+            lastValue = value;
+        }
+        
+        /**
+         * @return the prices of the period, or null if it contains no prices
+         */
+        DoubleTimeSeries build() {
+            if (start == null || length == 0)
+                return null;
+            
+            int n = length;
+            if (end != null) {
+                n = (int) TimeUtils.ceilIndex(TimeUtils.toEpochMillis(start),
+                        TimeUtils.granularityMillis(resolution), TimeUtils.toEpochMillis(end));
+                ensureCapacity(n);
+                if (carryForward && lastPosition < n)
+                    Arrays.fill(values, lastPosition, n, lastValue);
+                length = Math.max(length, n);
+            }
+            return new DoubleTimeSeries(start, resolution, Arrays.copyOf(values, n));
+        }
+        
+        private void ensureCapacity(int capacity) {
+            if (capacity > values.length) {
+                int oldLength = values.length;
+                values = Arrays.copyOf(values, Math.max(capacity, 2 * oldLength));
+                Arrays.fill(values, oldLength, values.length, Double.NaN);
+            }
+        }
+    }
+    
     /**
      * Day-ahead price information for a certain area.
      * A list of valid area EIC codes can be found at
@@ -81,115 +417,694 @@ public class EntsoeDayAhead implements CostSource {
         logger.info("areaEIC = " + areaEIC + ", timezone = " + timezone);
     }
     
+    /**
+     * Returns only cached prices; a missing day is requested in the background.
+     */
     @Override
     public Double getCostAt(LocalDateTime time) {
-        LocalDateTime fullHour = time.truncatedTo(ChronoUnit.HOURS);
-        Double price = prices.get(fullHour);
-        if (price != null) {
-            return price;
-        } else {
-            // if price is not in cache, get whole day
-            fetchCostsAt(fullHour);
-            return prices.get(fullHour);  // this might still be null
+        double price = cache.priceAt(time);
+        if (Double.isNaN(price)) {
+            LocalDateTime dayStart = localDayStart(time);
+            requestFetch(dayStart, nextLocalDayStart(dayStart));
+            return null;
         }
+        return price;
     }
 
-    /** Fetches the energy prices for the whole day containing the specified
-     * time and stores them in prices.
-     * @param time 
+    /**
+     * Returns only cached prices; all missing days from {@code start} to {@code end} are
+     * requested in the background with a single request.
      */
-    private void fetchCostsAt(LocalDateTime time) {
-        if (prices.size() > getMaxCacheSize()-24) prices.clear();
+    @Override
+    public DoubleTimeSeries getCosts(LocalDateTime start, LocalDateTime end,
+            Duration granularity) {
+        PriceCache prices = cache;
         
-        // calculate start and end of local-time day in UTC
-        final ZonedDateTime timeLocal = time.atZone(TimeUtils.UTC).withZoneSameInstant(timezone);
-        final ZonedDateTime dayStartLocal = timeLocal.truncatedTo(ChronoUnit.DAYS);
-        final ZonedDateTime dayEndLocal = dayStartLocal.plus(1, ChronoUnit.DAYS);
+        // every price applies to all slots beginning in its time interval
+        long startMillis = TimeUtils.toEpochMillis(start);
+        long granularityMillis = TimeUtils.granularityMillis(granularity);
+        int n = (int) Math.max(0, TimeUtils.ceilIndex(startMillis, granularityMillis,
+                TimeUtils.toEpochMillis(end)));
+        double[] values = new double[n];
+        Arrays.fill(values, Double.NaN);
+        int found = 0;
+        LocalDateTime firstDay = prices.days.floorKey(start);
+        for (DayPrices day : prices.days.subMap((firstDay == null) ? start : firstDay, true,
+                end, false).values()) {
+            int from = TimeUtils.clip(
+                    TimeUtils.ceilIndex(startMillis, granularityMillis, day.startMillis), 0, n);
+            int to = TimeUtils.clip(
+                    TimeUtils.ceilIndex(startMillis, granularityMillis, day.endMillis), 0, n);
+            for (int i = from; i < to; i++) {
+                values[i] = day.get(startMillis + i * granularityMillis);
+                if (!Double.isNaN(values[i]))
+                    found++;
+            }
+        }
         
-        final LocalDateTime dayStart = dayStartLocal.withZoneSameInstant(TimeUtils.UTC).toLocalDateTime();
-        final LocalDateTime dayEnd = dayEndLocal.withZoneSameInstant(TimeUtils.UTC).toLocalDateTime();
+        if (found < n)
+            requestFetch(localDayStart(start), end);
+        return new DoubleTimeSeries(start, granularity, values);
+    }
+    
+    /**
+     * Get the state of the prices for the day containing a certain time. This allows to tell
+     * prices which have not been published yet from prices which could not be fetched.
+     * @param time UTC time
+     * @return the fetch state
+     */
+    public FetchState getFetchState(LocalDateTime time) {
+        if (!Double.isNaN(cache.priceAt(time)))
+            return FetchState.AVAILABLE;
         
-        // field off requests too far in the future for day-ahead prices
-        if (time.isAfter(TimeUtils.now().plusDays(2))) {
-            logger.debug("Ignored request too far in the future.");
+        DayFetch fetch = fetches.get(localDayStart(time));
+        if (fetch == null)
+            return FetchState.UNKNOWN;
+        if (fetch.inFlight != null)
+            return FetchState.PENDING;
+        // prices which were available once may have been removed from the cache
+        return (fetch.state == FetchState.AVAILABLE) ? FetchState.UNKNOWN : fetch.state;
+    }
+    
+    /**
+     * Request the prices of the day containing a certain time, unless they are cached already
+     * or their retry delay has not passed yet. If the day is being fetched, the running request
+     * is shared.
+     * @param time UTC time
+     * @return a future which is completed with the state of the day once no request for it is
+     * running any more
+     */
+    public CompletableFuture<FetchState> requestPrices(LocalDateTime time) {
+        LocalDateTime dayStart = localDayStart(time);
+        requestFetch(dayStart, nextLocalDayStart(dayStart));
+        if (cache.isComplete(dayStart))
+            return CompletableFuture.completedFuture(FetchState.AVAILABLE);
+        DayFetch fetch = fetches.getOrDefault(dayStart, DayFetch.NEW);
+        return (fetch.inFlight != null) ? fetch.inFlight :
+                CompletableFuture.completedFuture(getFetchState(time));
+    }
+    
+    /**
+     * Start fetching prices in the background: the prices of today and tomorrow are requested
+     * immediately, and the prices of the next day are requested every day at the publication
+     * time.
+     */
+    public synchronized void startPrefetch() {
+        if (prefetching)
             return;
+        prefetching = true;
+        logger.info("Starting prefetch, publicationTime = " + publicationTime + ".");
+        
+        LocalDateTime today = localDayStart(TimeUtils.now());
+        requestFetch(today, nextLocalDayStart(nextLocalDayStart(today)));
+        schedulePrefetch();
+    }
+    
+    /**
+     * Stop all background activities. Prices can still be requested afterwards; this restarts
+     * the background thread, but not the daily prefetch.
+     */
+    @Override
+    public void stop() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            prefetching = false;
+            executor = fetchExecutor;
+            fetchExecutor = null;
+        }
+        
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) { }
         }
-        // if a similar request has failed recently, do not try again now
-        if (unavailableDay != null && unavailableDay.compareTo(dayStart) <= 0)
-            if (TimeUtils.now().isBefore(wasUnavailableAt.plus(coolOffTime)))
-                return;
-
-        fetchCosts(dayStart, dayEnd);
     }
     
-    protected void fetchCosts(LocalDateTime start, LocalDateTime end) {
-        logger.info("Fetching data from " + start + " to " + end + ".");
+    private synchronized void schedulePrefetch() {
+        if (!prefetching)
+            return;
+        
+        ZonedDateTime now = ZonedDateTime.now(timezone);
+        ZonedDateTime next = now.with(publicationTime);
+        if (!next.isAfter(now))
+            next = next.plusDays(1);
+        getFetchExecutor().schedule(this::prefetchNextDay,
+                Duration.between(now, next).toMillis(), TimeUnit.MILLISECONDS);
+    }
+    
+    private void prefetchNextDay() {
+        LocalDateTime tomorrow = nextLocalDayStart(localDayStart(TimeUtils.now()));
+        // the prices are due now, so do not wait for an earlier retry delay to pass
+        fetches.computeIfPresent(tomorrow,
+                (day, fetch) -> (fetch.inFlight == null) ? fetch.withNextAttempt(0) : fetch);
         
+        requestFetch(tomorrow, nextLocalDayStart(tomorrow));
+        schedulePrefetch();
+    }
+    
+    /**
+     * Request the prices of the days from {@code firstDay} until {@code end} which are not in
+     * the cache yet. Days which are already being fetched or whose retry delay has not passed
+     * are skipped; every run of consecutive remaining days is claimed atomically and fetched by
+     * the background thread with a single request.
+     * @param firstDay UTC time of the start of the first local-time day
+     * @param end UTC time until which prices are needed
+     */
+    private void requestFetch(LocalDateTime firstDay, LocalDateTime end) {
+        long now = TimeUtils.nowMillis();
+        LocalDateTime fetchStart = null;
+        LocalDateTime fetchEnd = null;
+        for (LocalDateTime day = firstDay; day.isBefore(end); day = nextLocalDayStart(day)) {
+            boolean claimed = false;
+            if (!cache.isComplete(day) && !isTooFarInFuture(day)) {
+                CompletableFuture<FetchState> inFlight = new CompletableFuture<>();
+                DayFetch fetch = fetches.compute(day, (d, f) -> {
+                    if (f == null)
+                        f = DayFetch.NEW;
+                    return (f.inFlight != null || f.nextAttemptMillis > now ||
+                            cache.isComplete(d)) ? f : f.withInFlight(inFlight);
+                });
+                claimed = (fetch.inFlight == inFlight);
+            }
+            
+            if (claimed) {
+                if (fetchStart == null)
+                    fetchStart = day;
+                fetchEnd = nextLocalDayStart(day);
+            } else if (fetchStart != null) {
+                submitFetch(fetchStart, fetchEnd);
+                fetchStart = null;
+            }
+        }
+        
+        if (fetchStart != null)
+            submitFetch(fetchStart, fetchEnd);
+    }
+    
+    private void submitFetch(LocalDateTime start, LocalDateTime end) {
+        try {
+            getFetchExecutor().execute(() -> runFetch(start, end));
+        } catch (RejectedExecutionException ex) {
+            // stopped concurrently; release the claimed days
+            finishFetch(start, end, FetchState.FAILED);
+        }
+    }
+    
+    /**
+     * Fetch the prices of the days from {@code start} to {@code end}, which have been claimed
+     * by {@code requestFetch}, and update their fetch states. Days which are still missing
+     * afterwards are retried later.
+     */
+    private void runFetch(LocalDateTime start, LocalDateTime end) {
+        FetchState result = FetchState.FAILED;
         try {
-            URL url = new URL("https://web-api.tp.entsoe.eu/api?securityToken=" +
-                    securityToken + "&documentType=A44" +
+            LocalDateTime fetchStart = loadStoredPrices(start, end);
+            result = fetchStart.isBefore(end) ?
+                    fetchCosts(fetchStart, end) : FetchState.AVAILABLE;
+        } catch (RuntimeException ex) {
+            logger.error("Could not fetch prices from " + start + " to " + end + ".", ex);
+        } finally {
+            finishFetch(start, end, result);
+        }
+    }
+    
+    /**
+     * Update the fetch states of the claimed days from {@code start} to {@code end} after a
+     * request and complete the futures of the waiting callers.
+     */
+    private void finishFetch(LocalDateTime start, LocalDateTime end, FetchState result) {
+        long now = TimeUtils.nowMillis();
+        PriceCache prices = cache;
+        for (LocalDateTime day = start; day.isBefore(end); day = nextLocalDayStart(day)) {
+            // only the owner of a request changes the state of a day with a request in flight
+            DayFetch fetch = fetches.getOrDefault(day, DayFetch.NEW);
+            DayFetch updated;
+            if (prices.isComplete(day)) {
+                updated = new DayFetch(FetchState.AVAILABLE, null, 0, 0);
+            } else {
+                // an answer without data for this day means it has not been published yet
+                FetchState state = (result == FetchState.AVAILABLE) ?
+                        FetchState.NOT_YET_PUBLISHED : result;
+                long publication = publicationMillis(day);
+                if (state == FetchState.NOT_YET_PUBLISHED && publication > now) {
+                    updated = new DayFetch(state, null, 0, publication);
+                } else {
+                    int failures = fetch.failures + 1;
+                    updated = new DayFetch(state, null, failures, now + retryDelay(failures));
+                }
+                logger.info("Prices for " + day + " " + state + ", next attempt at " +
+                        TimeUtils.ofEpochMillis(updated.nextAttemptMillis) + ".");
+            }
+            fetches.put(day, updated);
+            if (fetch.inFlight != null)
+                fetch.inFlight.complete(updated.state);
+            
+            // keep trying in the background while the prices are still useful
+            if (updated.state != FetchState.AVAILABLE && prefetching &&
+                    TimeUtils.toEpochMillis(nextLocalDayStart(day)) > now) {
+                final LocalDateTime retryDay = day;
+                try {
+                    getFetchExecutor().schedule(
+                            () -> requestFetch(retryDay, nextLocalDayStart(retryDay)),
+                            updated.nextAttemptMillis - now, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) { }
+            }
+        }
+    }
+    
+    /**
+     * Load the prices from {@code start} to {@code end} from the price store into the cache.
+     * @param start UTC time of the start of the first local-time day
+     * @param end UTC time of the end of the last local-time day
+     * @return UTC time of the start of the first day which is still missing, or {@code end}
+     */
+    private LocalDateTime loadStoredPrices(LocalDateTime start, LocalDateTime end) {
+        PriceStore store = priceStore;
+        if (store != null) {
+            List<DoubleTimeSeries> stored = store.loadPrices(areaEIC, start, end);
+            if (!stored.isEmpty()) {
+                logger.info("Loaded " + stored.size() + " periods from the price store.");
+                putPrices(stored);
+            }
+        }
+        
+        PriceCache prices = cache;
+        LocalDateTime day = start;
+        while (day.isBefore(end) && prices.isComplete(day))
+            day = nextLocalDayStart(day);
+        return day;
+    }
+    
+    /**
+     * Add prices to the cache, evicting old prices if necessary. The days which receive prices
+     * are copied, and the new cache is published as a whole.
+     * @param periods
+     */
+    private void putPrices(List<DoubleTimeSeries> periods) {
+        int incoming = 0;
+        for (DoubleTimeSeries period : periods)
+            incoming += period.size();
+        
+        synchronized (cacheLock) {
+            TreeMap<LocalDateTime, DayPrices> days = new TreeMap<>(cache.days);
+            int size = evict(days, cache.size, incoming);
+            Set<LocalDateTime> copied = new HashSet<>();
+            for (DoubleTimeSeries period : periods) {
+                LocalDateTime end = period.getEnd();
+                for (LocalDateTime day = localDayStart(period.getStart()); day.isBefore(end);
+                        day = nextLocalDayStart(day)) {
+                    DayPrices dayPrices = days.get(day);
+                    if (dayPrices == null) {
+                        dayPrices = new DayPrices(TimeUtils.toEpochMillis(day),
+                                TimeUtils.toEpochMillis(nextLocalDayStart(day)),
+                                TimeUtils.granularityMillis(period.getGranularity()));
+                        size += dayPrices.values.length;
+                    } else if (!copied.contains(day)) {
+                        dayPrices = new DayPrices(dayPrices);
+                    }
+                    days.put(day, dayPrices);
+                    copied.add(day);
+                    int before = dayPrices.values.length;
+                    dayPrices.put(period);
+                    size += dayPrices.values.length - before;
+                }
+            }
+            cache = new PriceCache(days, size);
+            dataVersion++;
+        }
+    }
+    
+    /**
+     * Calculate the delay before the next attempt, doubling with every failure.
+     */
+    private long retryDelay(int failures) {
+        long delay = initialRetryDelay.toMillis() << Math.min(failures - 1, 20);
+        return Math.min(delay, maxRetryDelay.toMillis());
+    }
+    
+    /**
+     * Calculate the time at which the prices of a day are published, i.e. the publication time
+     * on the previous local day.
+     * @param dayStart UTC time of the start of the local-time day
+     * @return the time in milliseconds since the epoch
+     */
+    private long publicationMillis(LocalDateTime dayStart) {
+        ZonedDateTime publication = dayStart.atZone(TimeUtils.UTC).withZoneSameInstant(timezone)
+                .minusDays(1).with(publicationTime);
+        return publication.toInstant().toEpochMilli();
+    }
+    
+    private synchronized ScheduledExecutorService getFetchExecutor() {
+        if (fetchExecutor == null) {
+            fetchExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "EntsoeDayAhead");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return fetchExecutor;
+    }
+    
+    /**
+     * Make room for {@code incoming} new prices by evicting the oldest days from the cache.
+     * Days within the retention time before the current day, the current day and all later days
+     * are never evicted, so the prices of the active horizon stay available even if the cache
+     * has to grow beyond its maximum size.
+     * @param days the days of the new cache, which are removed from this map
+     * @param size the number of prices in {@code days}
+     * @param incoming the number of prices that will be added
+     * @return the number of prices left in {@code days}
+     */
+    private int evict(TreeMap<LocalDateTime, DayPrices> days, int size, int incoming) {
+        LocalDateTime protectedFrom = localDayStart(TimeUtils.now()).minus(retention);
+        int evicted = 0;
+        while (size + incoming > maxCacheSize && !days.isEmpty() &&
+                days.firstKey().isBefore(protectedFrom)) {
+            size -= days.pollFirstEntry().getValue().values.length;
+            evicted++;
+        }
+        if (evicted > 0)
+            logger.debug("Evicted " + evicted + " days from the cache.");
+        
+        // forget old days which are neither cached nor being fetched; the states are
+        // immutable, so a state replaced in the meantime is not removed
+        fetches.entrySet().removeIf(e -> e.getKey().isBefore(protectedFrom) &&
+                e.getValue().inFlight == null && !days.containsKey(e.getKey()));
+        return size;
+    }
+    
+    /**
+     * Day-ahead prices are not available for days too far in the future.
+     * @param dayStart UTC time of the start of the local-time day
+     */
+    private boolean isTooFarInFuture(LocalDateTime dayStart) {
+        return dayStart.isAfter(TimeUtils.now().plusDays(2));
+    }
+    
+    /**
+     * Calculate the start of the local-time day containing a certain time.
+     * @param time UTC time
+     * @return UTC time of the start of the day
+     */
+    private LocalDateTime localDayStart(LocalDateTime time) {
+        return time.atZone(TimeUtils.UTC).withZoneSameInstant(timezone)
+                .truncatedTo(ChronoUnit.DAYS).withZoneSameInstant(TimeUtils.UTC).toLocalDateTime();
+    }
+    
+    /**
+     * Calculate the start of the next local-time day.
+     * @param dayStart UTC time of the start of a day
+     * @return UTC time of the start of the next day
+     */
+    private LocalDateTime nextLocalDayStart(LocalDateTime dayStart) {
+        return dayStart.atZone(TimeUtils.UTC).withZoneSameInstant(timezone).plusDays(1)
+                .withZoneSameInstant(TimeUtils.UTC).toLocalDateTime();
+    }
+    
+    /**
+     * Fetch the prices from {@code start} to {@code end} and store them in the cache. This
+     * method blocks until the server has answered.
+     * @param start
+     * @param end
+     * @return {@code AVAILABLE} if prices were received, {@code NOT_YET_PUBLISHED} if the
+     * server has no prices for this time, or {@code FAILED}
+     */
+    protected FetchState fetchCosts(LocalDateTime start, LocalDateTime end) {
+        List<DoubleTimeSeries> received = new ArrayList<>();
+        FetchState result = fetchPeriods(start, end, received::add);
+        if (result != FetchState.AVAILABLE)
+            return result;
+        
+        putPrices(received);
+        PriceStore store = priceStore;
+        if (store != null)
+            store.storePrices(areaEIC, received);
+        for (Consumer<DoubleTimeSeries> listener : priceListeners)
+            received.forEach(listener);
+        return FetchState.AVAILABLE;
+    }
+    
+    /**
+     * Register a listener which receives all prices fetched from the API, one period at a time.
+     * Prices loaded from the price store are not passed on. The listener is called from the
+     * background thread.
+     * @param listener
+     */
+    public void addPriceListener(Consumer<DoubleTimeSeries> listener) {
+        priceListeners.add(listener);
+    }
+    
+    /**
+     * Fetch the prices from {@code start} to {@code end} and pass each period to
+     * {@code consumer} as soon as it has been parsed. The prices are not stored in the cache.
+     * This method blocks until the server has answered; it may be called from several threads
+     * at the same time.
+     * @param start
+     * @param end
+     * @param consumer receives the prices of every {@code Period} element
+     * @return {@code AVAILABLE} if prices were received, {@code NOT_YET_PUBLISHED} if the
+     * server has no prices for this time, or {@code FAILED}
+     */
+    protected FetchState fetchPeriods(LocalDateTime start, LocalDateTime end,
+            Consumer<DoubleTimeSeries> consumer) {
+        logger.info("Fetching data from " + start + " to " + end + ".");
+        
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl +
+                    "?securityToken=" + securityToken + "&documentType=A44" +
                     "&in_Domain=" + areaEIC + "&out_Domain=" + areaEIC +
                     "&periodStart=" + start.format(DATE_FORMAT) +
-                    "&periodEnd=" + end.format(DATE_FORMAT));
-
-            HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-            if (conn.getResponseCode() == 400) {
-                logger.warn("Server returned 400 BAD REQUEST.");
-                // cache error response for a certain time
-                unavailableDay = start;
-                wasUnavailableAt = TimeUtils.now();
-            } else {
-                try (InputStream input = conn.getInputStream()) {
-                    loadXML(input);
+                    "&periodEnd=" + end.format(DATE_FORMAT)))
+                .timeout(timeout)
+                .header("Accept-Encoding", "gzip")
+                .GET()
+                .build();
+        
+        for (int attempt = 1; ; attempt++) {
+            long retryAfter = 0;
+            try {
+                HttpResponse<InputStream> response = HTTP_CLIENT.send(request,
+                        HttpResponse.BodyHandlers.ofInputStream());
+                int status = response.statusCode();
+                try (InputStream input = decodedBody(response)) {
+                    if (status == 200) {
+                        int periods = loadXML(input, consumer);
+                        return (periods > 0) ? FetchState.AVAILABLE : FetchState.NOT_YET_PUBLISHED;
+                    } else if (status == 400) {
+                        // the server answers BAD REQUEST if there is no data for this time
+                        logger.warn("Server returned 400 BAD REQUEST.");
+                        return FetchState.NOT_YET_PUBLISHED;
+                    } else if (status != 429 && status < 500) {
+                        logger.warn("Server returned " + status + ".");
+                        return FetchState.FAILED;
+                    }
+                    logger.warn("Server returned " + status + " (attempt " + attempt + ").");
+                    retryAfter = retryAfterMillis(response);
                 }
+            } catch (IOException ex) {
+                logger.warn("Could not fetch data (attempt " + attempt + "): " + ex);
+            } catch (XMLStreamException | NumberFormatException | DateTimeParseException ex) {
+                logger.error("Could not parse data.", ex);
+                return FetchState.FAILED;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return FetchState.FAILED;
             }
-        } catch (IOException | XMLStreamException  ex) {
-            logger.error("Could not fetch data.", ex);
-        }        
+            
+            // exponential backoff with jitter, unless the server asks for a longer delay
+            long delay = REQUEST_RETRY_DELAY.toMillis() << (attempt - 1);
+            delay = Math.max(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1),
+                    retryAfter);
+            if (attempt >= REQUEST_ATTEMPTS || delay > MAX_REQUEST_RETRY_DELAY.toMillis()) {
+                logger.error("Could not fetch data.");
+                return FetchState.FAILED;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return FetchState.FAILED;
+            }
+        }
     }
     
-    private void loadXML(InputStream source) throws XMLStreamException {
-        XMLInputFactory xif = XMLInputFactory.newFactory();
-        XMLEventReader reader = xif.createXMLEventReader(source);
+    /**
+     * Get the response body, unpacking it if the server has compressed it.
+     */
+    private static InputStream decodedBody(HttpResponse<InputStream> response)
+            throws IOException {
+        InputStream body = response.body();
+        boolean gzip = response.headers().firstValue("Content-Encoding")
+                .map(encoding -> encoding.trim().equalsIgnoreCase("gzip")).orElse(false);
+        if (!gzip)
+            return body;
+        
+        try {
+            return new GZIPInputStream(body);
+        } catch (IOException ex) {
+            body.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Get the delay requested by the server in a {@code Retry-After} header.
+     * @return the delay in milliseconds, or 0 if there is none; HTTP dates are not supported
+     */
+    private static long retryAfterMillis(HttpResponse<?> response) {
+        try {
+            return response.headers().firstValue("Retry-After")
+                    .map(value -> Long.parseLong(value.trim()) * TimeUtils.MILLIS_PER_SECOND)
+                    .orElse(0L);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+    
+    /**
+     * Parse a publication market document. Every {@code Period} element becomes one time series
+     * in the resolution given by the document. The document is read with the cursor API, and
+     * positions and prices are parsed directly from the character buffer of the reader.
+     * @param source
+     * @param consumer receives the prices of every period
+     * @return the number of periods
+     * @throws XMLStreamException 
+     */
+    static int loadXML(InputStream source, Consumer<DoubleTimeSeries> consumer)
+            throws XMLStreamException {
+        int periods = 0;
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(source);
         
-        String currentElement = "";
-        LocalDateTime startDate = null;
-        LocalDateTime timestamp = null;
+        String curveType = "";
+        PeriodParser period = new PeriodParser();
+        int position = 0;
 
-        while (reader.hasNext()) {
-            XMLEvent event = reader.nextEvent();
-            
-            switch (event.getEventType()) {
-                case XMLStreamConstants.START_ELEMENT:
-                    StartElement el = event.asStartElement();
-                    currentElement = el.getName().getLocalPart(); 
-                    break;
-                    
-                case XMLStreamConstants.END_ELEMENT:
-                    currentElement = "";
-                    break;
-                    
-                case XMLStreamConstants.CHARACTERS:
-                    String data = event.asCharacters().getData();
-                    switch (currentElement) {
-                        case "start":
-                            // remove trailing Z:
-                            if (data.endsWith("Z"))
-                                data = data.substring(0, data.length()-1);
-                            startDate = LocalDateTime.parse(data);
-                            break;
-                        case "position":
-                            if (startDate != null)
-                                timestamp = startDate.plusHours(Integer.parseInt(data)-1);
-                            break;
-                        case "price.amount":
-                            prices.put(timestamp, Double.parseDouble(data));
-                            break;
-                    }
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        switch (reader.getLocalName()) {
+                            case "TimeSeries":
+                                curveType = "";
+                                break;
+                            case "Period":
+                                period.reset(curveType.equals(CURVE_TYPE_VARIABLE_BLOCKS));
+                                break;
+                            case "curveType":
+                                curveType = reader.getElementText().trim();
+                                break;
+                            case "start":
+                                period.start = parseTime(reader.getElementText());
+                                break;
+                            case "end":
+                                period.end = parseTime(reader.getElementText());
+                                break;
+                            case "resolution":
+                                period.resolution = Duration.parse(reader.getElementText().trim());
+                                break;
+                            case "position":
+                                if (reader.next() == XMLStreamConstants.CHARACTERS)
+                                    position = (int) parseNumber(reader.getTextCharacters(),
+                                            reader.getTextStart(), reader.getTextLength());
+                                break;
+                            case "price.amount":
+                                if (reader.next() == XMLStreamConstants.CHARACTERS)
+                                    period.put(position, parseNumber(reader.getTextCharacters(),
+                                            reader.getTextStart(), reader.getTextLength()));
+                                break;
+                        }
+                        break;
+                        
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (reader.getLocalName().equals("Period")) {
+                            DoubleTimeSeries periodPrices = period.build();
+                            if (periodPrices != null) {
+                                consumer.accept(periodPrices);
+                                periods++;
+                            }
+                        }
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        
+        return periods;
+    }
+    
+    /**
+     * Parse a decimal number like {@code 42} or {@code -13.57} without creating a string. Other
+     * formats, e.g. with an exponent or too many digits, are passed on to
+     * {@code Double.parseDouble}, so the result is always the same.
+     * @param chars
+     * @param start
+     * @param length
+     * @return the number
+     */
+    static double parseNumber(char[] chars, int start, int length) {
+        int from = start;
+        int to = start + length;
+        while (from < to && Character.isWhitespace(chars[from])) from++;
+        while (to > from && Character.isWhitespace(chars[to-1])) to--;
+        
+        int i = from;
+        boolean negative = false;
+        if (i < to && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+        
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < to; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAX_EXACT_DIGITS)
                     break;
+                mantissa = 10 * mantissa + (c - '0');
+                if (fractionDigits >= 0)
+                    fractionDigits++;
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
             }
         }
-        reader.close();
+        if (i < to || digits == 0)
+            return Double.parseDouble(new String(chars, from, to - from));
+        
+        double value = (fractionDigits > 0) ?
+                mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+    
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory xif = XMLInputFactory.newFactory();
+        xif.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return xif;
+    }
+    
+    private static LocalDateTime parseTime(String data) {
+        data = data.trim();
+        // remove trailing Z:
+        if (data.endsWith("Z"))
+            data = data.substring(0, data.length()-1);
+        return LocalDateTime.parse(data);
+    }
+    
+    @Override
+    public long getDataVersion() {
+        return dataVersion;
+    }
+    
+    /**
+     * Prices are only read from the cache; missing days are fetched in the background.
+     */
+    @Override
+    public boolean isNonBlocking() {
+        return true;
     }
 
     public int getMaxCacheSize() {
@@ -198,11 +1113,105 @@ public class EntsoeDayAhead implements CostSource {
 
     public void setMaxCacheSize(int maxCacheSize) {
         this.maxCacheSize = maxCacheSize;
-        if (prices.size() > maxCacheSize) prices.clear();
+        synchronized (cacheLock) {
+            TreeMap<LocalDateTime, DayPrices> days = new TreeMap<>(cache.days);
+            int size = evict(days, cache.size, 0);
+            cache = new PriceCache(days, size);
+        }
+    }
+
+    public Duration getRetention() {
+        return retention;
+    }
+
+    /**
+     * Set the time before the start of the current day from which on prices are never evicted
+     * from the cache.
+     * @param retention
+     */
+    public void setRetention(Duration retention) {
+        this.retention = retention;
     }
     
+    public PriceStore getPriceStore() {
+        return priceStore;
+    }
+
+    /**
+     * Set the store in which fetched prices are kept across restarts.
+     * @param priceStore the store, or null
+     */
+    public void setPriceStore(PriceStore priceStore) {
+        this.priceStore = priceStore;
+    }
+
+    public LocalTime getPublicationTime() {
+        return publicationTime;
+    }
+
+    /**
+     * Set the local time at which the prices of the next day are usually published.
+     * @param publicationTime
+     */
+    public void setPublicationTime(LocalTime publicationTime) {
+        this.publicationTime = publicationTime;
+    }
+
+    public Duration getInitialRetryDelay() {
+        return initialRetryDelay;
+    }
+
+    public void setInitialRetryDelay(Duration initialRetryDelay) {
+        this.initialRetryDelay = initialRetryDelay;
+    }
+
+    public Duration getMaxRetryDelay() {
+        return maxRetryDelay;
+    }
+
+    public void setMaxRetryDelay(Duration maxRetryDelay) {
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set the time after which a request to the API is abandoned if the server has not
+     * answered.
+     * @param timeout
+     */
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Set the URL of the API, e.g. to use a local stand-in server for testing.
+     * @param baseUrl
+     */
+    public void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+    
+    /**
+     * Get all cached prices.
+     * @return map from the UTC start time of each slot to its price
+     */
     protected TreeMap<LocalDateTime, Double> getPrices() {
-        return new TreeMap<>(prices);
+        TreeMap<LocalDateTime, Double> result = new TreeMap<>();
+        for (DayPrices day : cache.days.values()) {
+            for (int i = 0; i < day.values.length; i++) {
+                if (!Double.isNaN(day.values[i]))
+                    result.put(TimeUtils.ofEpochMillis(day.startMillis + i * day.resolutionMillis),
+                            day.values[i]);
+            }
+        }
+        return result;
     }
     
 }
\ No newline at end of file
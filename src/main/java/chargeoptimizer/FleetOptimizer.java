@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optimizes the charging times of several vehicles which share one grid connection. The sum of
+ * the charging power of all vehicles never exceeds the site power limit.
+ *
+ * Vehicles are scheduled greedily, those with the least slack first; each one gets the cheapest
+ * slots that still have enough capacity left. If a vehicle cannot get enough slots, the plan is
+ * repaired by moving other vehicles from a contested slot to their cheapest free alternative.
+ */
+public class FleetOptimizer {
+    
+    final Logger logger = LoggerFactory.getLogger(FleetOptimizer.class);
+    
+    // slack for comparing power sums
+    private static final double EPSILON = 1e-9;
+    // bit mask for the vehicle index in the sort keys
+    private static final long INDEX_MASK = (1L << 21) - 1;
+    
+    private double sitePowerLimit;
+    
+    /**
+     * A vehicle that is connected to one of the chargers.
+     */
+    public static class Vehicle {
+        public final LocalDateTime arrival;
+        public final LocalDateTime departure;
+        public final double energy;
+        public final double maxPower;
+        
+        /**
+         * @param arrival the UTC time at which the vehicle is connected
+         * @param departure the UTC time at which the vehicle leaves
+         * @param energy the energy needed in kWh
+         * @param maxPower the charging power in kW
+         */
+        public Vehicle(LocalDateTime arrival, LocalDateTime departure, double energy,
+                double maxPower) {
+            this.arrival = arrival;
+            this.departure = departure;
+            this.energy = energy;
+            this.maxPower = maxPower;
+        }
+        
+        @Override
+        public String toString() {
+            return "[" + arrival + " - " + departure + ", " + energy + " kWh, " + maxPower +
+                    " kW]";
+        }
+    }
+    
+    /**
+     * @param sitePowerLimit the maximum total charging power in kW
+     */
+    public FleetOptimizer(double sitePowerLimit) {
+        this.sitePowerLimit = sitePowerLimit;
+        
+        logger.info("sitePowerLimit = " + sitePowerLimit + " kW");
+    }
+    
+    /**
+     * Optimize the charging times of all vehicles jointly.
+     * @param costs this time series specifies the costs and the time interval for optimization
+     * @param vehicles
+     * @return one schedule for each vehicle, in the same order
+     */
+    public List<ChargingSchedule> optimize(DoubleTimeSeries costs, List<Vehicle> vehicles) {
+        int n = costs.size();
+        int m = vehicles.size();
+        long startMillis = TimeUtils.toEpochMillis(costs.getStart());
+        long granularityMillis = TimeUtils.granularityMillis(costs.getGranularity());
+        
+        // sanitize costs: replace unknown costs with average value
+        double avg = costs.average();
+        double[] cost = costs.replaceNaNsWith(Double.isNaN(avg) ? 0. : avg).toArray();
+        
+        int[] from = new int[m];
+        int[] to = new int[m];
+        int[] needed = new int[m];
+        double[] power = new double[m];
+        BitSet[] assigned = new BitSet[m];
+        for (int v = 0; v < m; v++) {
+            Vehicle vehicle = vehicles.get(v);
+            from[v] = TimeUtils.clip(TimeUtils.ceilIndex(startMillis, granularityMillis,
+                    TimeUtils.toEpochMillis(vehicle.arrival)), 0, n);
+            to[v] = TimeUtils.clip(TimeUtils.floorIndex(startMillis, granularityMillis,
+                    TimeUtils.toEpochMillis(vehicle.departure)), from[v], n);
+            power[v] = Math.min(vehicle.maxPower, sitePowerLimit);
+            double energyPerSlot = power[v] * granularityMillis / 3.6e6;
+            needed[v] = (energyPerSlot <= 0) ? 0 :
+                    (int) Math.min(to[v] - from[v],
+                            Math.ceil(vehicle.energy / energyPerSlot - EPSILON));
+            assigned[v] = new BitSet(n);
+        }
+        
+        // vehicles with the least slack first, ties broken by departure; the keys are packed
+        // into longs so that a primitive sort can be used
+        long[] keys = new long[m];
+        for (int v = 0; v < m; v++)
+            keys[v] = ((long) (to[v] - from[v] - needed[v]) << 42) | ((long) to[v] << 21) | v;
+        Arrays.sort(keys);
+        int[] order = new int[m];
+        for (int i = 0; i < m; i++)
+            order[i] = (int) (keys[i] & INDEX_MASK);
+        
+        double[] load = new double[n];
+        int[] candidates = new int[n];
+        double[] scratch = new double[n];
+        int missingTotal = 0;
+        for (int v : order) {
+            int missing = assignCheapest(v, from, to, needed, power, assigned, cost, load,
+                    candidates, scratch);
+            missing -= repair(v, missing, from, to, power, assigned, cost, load, m);
+            if (missing > 0) {
+                logger.warn("Vehicle " + vehicles.get(v) + " lacks " + missing +
+                        " charging slots.");
+                missingTotal += missing;
+            }
+        }
+        if (missingTotal > 0)
+            logger.warn("Fleet plan lacks " + missingTotal + " charging slots in total.");
+        
+        List<ChargingSchedule> result = new ArrayList<>(m);
+        for (int v = 0; v < m; v++)
+            result.add(new ChargingSchedule(costs.getStart(), costs.getGranularity(),
+                    assigned[v], n, false, false));
+        return result;
+    }
+    
+    /**
+     * Assign the cheapest slots with enough remaining capacity to vehicle {@code v}.
+     * @return the number of slots that could not be assigned
+     */
+    private int assignCheapest(int v, int[] from, int[] to, int[] needed, double[] power,
+            BitSet[] assigned, double[] cost, double[] load, int[] candidates, double[] scratch) {
+        int count = 0;
+        for (int t = from[v]; t < to[v]; t++) {
+            if (load[t] + power[v] <= sitePowerLimit + EPSILON)
+                candidates[count++] = t;
+        }
+        
+        int k = Math.min(needed[v], count);
+        if (k == 0)
+            return needed[v];
+        
+        double threshold;
+        if (k == count) {
+            threshold = Double.POSITIVE_INFINITY;
+        } else {
+            for (int i = 0; i < count; i++)
+                scratch[i] = cost[candidates[i]];
+            threshold = CheapestTimesOptimizer.select(scratch, count, k - 1);
+        }
+        
+        // take everything cheaper than the threshold, then the earliest slots at the threshold
+        int taken = 0;
+        for (int i = 0; i < count; i++) {
+            int t = candidates[i];
+            if (cost[t] < threshold) {
+                assign(v, t, power, assigned, load);
+                taken++;
+            }
+        }
+        for (int i = 0; i < count && taken < k; i++) {
+            int t = candidates[i];
+            if (cost[t] == threshold) {
+                assign(v, t, power, assigned, load);
+                taken++;
+            }
+        }
+        return needed[v] - taken;
+    }
+    
+    /**
+     * Try to free capacity for vehicle {@code v} by moving other vehicles to a different slot;
+     * every move is chosen to increase the total cost as little as possible.
+     * @return the number of additional slots assigned to {@code v}
+     */
+    private int repair(int v, int missing, int[] from, int[] to, double[] power,
+            BitSet[] assigned, double[] cost, double[] load, int m) {
+        int[] alternatives = new int[m];
+        int repaired = 0;
+        while (repaired < missing) {
+            for (int u = 0; u < m; u++)
+                alternatives[u] = (u == v) ? -1 :
+                        cheapestFreeSlot(u, from, to, power, assigned, cost, load);
+            
+            double bestDelta = Double.POSITIVE_INFINITY;
+            int bestSlot = -1, bestOther = -1;
+            for (int t = from[v]; t < to[v]; t++) {
+                if (assigned[v].get(t))
+                    continue;
+                for (int u = 0; u < m; u++) {
+                    int alternative = alternatives[u];
+                    if (alternative < 0 || !assigned[u].get(t) ||
+                            load[t] - power[u] + power[v] > sitePowerLimit + EPSILON)
+                        continue;
+                    double delta = cost[t] * power[v] +
+                            (cost[alternative] - cost[t]) * power[u];
+                    if (delta < bestDelta) {
+                        bestDelta = delta;
+                        bestSlot = t;
+                        bestOther = u;
+                    }
+                }
+            }
+            
+            if (bestSlot < 0)
+                break;
+            unassign(bestOther, bestSlot, power, assigned, load);
+            assign(bestOther, alternatives[bestOther], power, assigned, load);
+            assign(v, bestSlot, power, assigned, load);
+            repaired++;
+        }
+        return repaired;
+    }
+    
+    /**
+     * Find the cheapest slot in which vehicle {@code u} is not charging yet and which has enough
+     * capacity left.
+     * @return the slot, or -1 if there is none
+     */
+    private int cheapestFreeSlot(int u, int[] from, int[] to, double[] power, BitSet[] assigned,
+            double[] cost, double[] load) {
+        int best = -1;
+        for (int t = assigned[u].nextClearBit(from[u]); t < to[u];
+                t = assigned[u].nextClearBit(t + 1)) {
+            if (load[t] + power[u] <= sitePowerLimit + EPSILON &&
+                    (best < 0 || cost[t] < cost[best]))
+                best = t;
+        }
+        return best;
+    }
+    
+    private static void assign(int v, int t, double[] power, BitSet[] assigned, double[] load) {
+        assigned[v].set(t);
+        load[t] += power[v];
+    }
+    
+    private static void unassign(int v, int t, double[] power, BitSet[] assigned,
+            double[] load) {
+        assigned[v].clear(t);
+        load[t] -= power[v];
+    }
+    
+    public double getSitePowerLimit() {
+        return sitePowerLimit;
+    }
+    
+    public void setSitePowerLimit(double sitePowerLimit) {
+        this.sitePowerLimit = sitePowerLimit;
+    }
+    
+}
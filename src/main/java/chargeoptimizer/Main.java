@@ -19,9 +19,17 @@ package chargeoptimizer;
 import chargeoptimizer.webserver.Webserver;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -71,24 +79,11 @@ public class Main {
         }
         
         // CostSource
-        switch (config.getProperty("costSource", "EntsoeAvgPrices")) {
-            case "EntsoeDayAhead":
-                String areaCode = config.getProperty("entsoe.areaCode", "10Y1001A1001A82H");
-                ZoneId timezone = ZoneId.of(config.getProperty("entsoe.timezone", "Europe/Berlin"));
-                String securityToken =  config.getProperty("entsoe.securityToken");
-                chargeOptimizer.setCostSource(new EntsoeDayAhead(areaCode, timezone, securityToken));
-                break;
-                
-            case "EntsoeAvgPrices":
-                areaCode = config.getProperty("entsoe.areaCode", "10Y1001A1001A82H");
-                timezone = ZoneId.of(config.getProperty("entsoe.timezone", "Europe/Berlin"));
-                chargeOptimizer.setCostSource(new EntsoeAvgPrices(areaCode, timezone));
-                break;
-                
-            default:
-                logger.error("Unknown cost source " + config.getProperty("costSource"));
-                System.exit(1);
-        }
+        List<EntsoeDayAhead> dayAheadSources = new ArrayList<>();
+        List<PriceForecast> forecasts = new ArrayList<>();
+        chargeOptimizer.setCostSource(createCostSource(
+                config.getProperty("costSource", "EntsoeAvgPrices"), config, dayAheadSources,
+                forecasts, new LinkedHashSet<>()));
         
         // Optimizer
         switch (config.getProperty("optimizer", "CheapestTimesOptimizer")) {
@@ -99,6 +94,21 @@ public class Main {
                         new CheapestTimesOptimizer(Duration.ofMinutes(minimumChargingTime)));
                 break;
                 
+            case "EnergyDeadlineOptimizer":
+                double energy = Double.parseDouble(
+                        config.getProperty("energyDeadlineOptimizer.energy", "30"));
+                double power = Double.parseDouble(
+                        config.getProperty("energyDeadlineOptimizer.power", "11"));
+                int maxSwitches = Integer.parseInt(
+                        config.getProperty("energyDeadlineOptimizer.maxSwitches", "4"));
+                String deadline = config.getProperty("energyDeadlineOptimizer.deadline");
+                ZoneId deadlineTimezone = ZoneId.of(
+                        config.getProperty("entsoe.timezone", "Europe/Berlin"));
+                chargeOptimizer.setOptimizer(new EnergyDeadlineOptimizer(energy, power,
+                        maxSwitches, (deadline == null) ? null : LocalTime.parse(deadline),
+                        deadlineTimezone));
+                break;
+                
             default:
                 logger.error("Unknown optimizer " + config.getProperty("optimizer"));
                 System.exit(1);
@@ -106,12 +116,36 @@ public class Main {
         int optimizationTime = Integer.parseInt(config.getProperty("optimizationTime", "480"));
         chargeOptimizer.setOptimizationTime(Duration.ofMinutes(optimizationTime));
         logger.info("chargeOptimizer.optimizationTime = " + optimizationTime + " minutes");
+        int reoptimizationInterval = Integer.parseInt(
+                config.getProperty("reoptimizationInterval", "60"));
+        chargeOptimizer.setReoptimizationInterval(Duration.ofMinutes(reoptimizationInterval));
+        logger.info("chargeOptimizer.reoptimizationInterval = " + reoptimizationInterval +
+                " minutes");
         
         // StatisticsDatabase
         String dbUrl = config.getProperty("statisticsDatabase.url", "jdbc:h2:mem:chargeoptim");
         String dbUser = config.getProperty("statisticsDatabase.user", "");
         String dbPassword = config.getProperty("statisticsDatabase.password", "");
-        chargeOptimizer.setStatisticsDatabase(new StatisticsDatabase(dbUrl, dbUser, dbPassword));
+        StatisticsDatabase statisticsDatabase = new StatisticsDatabase(dbUrl, dbUser, dbPassword);
+        statisticsDatabase.setFlushInterval(Duration.ofSeconds(Integer.parseInt(
+                config.getProperty("statisticsDatabase.flushInterval", "300"))));
+        statisticsDatabase.setFlushSize(Integer.parseInt(
+                config.getProperty("statisticsDatabase.flushSize", "100")));
+        statisticsDatabase.setLogMode(StatisticsDatabase.LogMode.valueOf(
+                config.getProperty("statisticsDatabase.logMode", "all").trim().toUpperCase()));
+        statisticsDatabase.setHeartbeatInterval(Duration.ofSeconds(Integer.parseInt(
+                config.getProperty("statisticsDatabase.heartbeat", "900"))));
+        chargeOptimizer.setStatisticsDatabase(statisticsDatabase);
+        dayAheadSources.forEach(source -> source.setPriceStore(statisticsDatabase));
+        
+        // train forecasts with stored prices and keep them up to date with new prices
+        int trainingDays = Integer.parseInt(config.getProperty("priceForecast.trainingDays", "56"));
+        for (PriceForecast forecast : forecasts) {
+            LocalDateTime now = TimeUtils.now();
+            forecast.train(statisticsDatabase.loadPrices(forecast.getAreaEIC(),
+                    now.minusDays(trainingDays), now));
+            dayAheadSources.forEach(source -> source.addPriceListener(forecast::train));
+        }
         
         // Webserver
         Webserver webserver = null;
@@ -119,6 +153,7 @@ public class Main {
         if (port != 0)
             webserver = new Webserver(chargeOptimizer, port);
         
+        dayAheadSources.forEach(EntsoeDayAhead::startPrefetch);
         chargeOptimizer.start();
         if (webserver != null)  webserver.start();
         logger.info("Press enter to stop.");
@@ -127,6 +162,91 @@ public class Main {
         } catch (IOException ex) { }
         if (webserver != null)  webserver.stop();
         chargeOptimizer.stop();
+        dayAheadSources.forEach(EntsoeDayAhead::stop);
+    }
+    
+    /**
+     * Create a cost source from the configuration.
+     * @param type the type of the cost source
+     * @param config
+     * @param dayAheadSources all created {@code EntsoeDayAhead} sources are added to this list
+     * @param forecasts all created {@code PriceForecast} sources are added to this list
+     * @param enclosing the types of the composite cost sources which this one is part of; each
+     * type can only be used once on every level of nesting
+     * @return the cost source
+     */
+    private static CostSource createCostSource(String type, Properties config,
+            List<EntsoeDayAhead> dayAheadSources, List<PriceForecast> forecasts,
+            Set<String> enclosing) {
+        String areaCode = config.getProperty("entsoe.areaCode", "10Y1001A1001A82H");
+        ZoneId timezone = ZoneId.of(config.getProperty("entsoe.timezone", "Europe/Berlin"));
+        
+        Set<String> nested = new LinkedHashSet<>(enclosing);
+        if ((type.equals("Tiered") || type.equals("Tariff")) && !nested.add(type)) {
+            logger.error(type + " cost sources cannot be nested: " +
+                    String.join(" > ", enclosing) + " > " + type);
+            System.exit(1);
+        }
+        
+        switch (type) {
+            case "EntsoeDayAhead":
+                String securityToken =  config.getProperty("entsoe.securityToken");
+                EntsoeDayAhead entsoeDayAhead = new EntsoeDayAhead(areaCode, timezone,
+                        securityToken);
+                entsoeDayAhead.setPublicationTime(LocalTime.parse(
+                        config.getProperty("entsoe.publicationTime", "13:00")));
+                String baseUrl = config.getProperty("entsoe.baseUrl");
+                if (baseUrl != null)
+                    entsoeDayAhead.setBaseUrl(baseUrl);
+                dayAheadSources.add(entsoeDayAhead);
+                return entsoeDayAhead;
+                
+            case "EntsoeAvgPrices":
+                String profile = config.getProperty("entsoeAvgPrices.profile");
+                return new EntsoeAvgPrices(areaCode, timezone,
+                        (profile != null) ? Paths.get(profile) : null);
+                
+            case "PriceForecast":
+                double halfLife = Double.parseDouble(
+                        config.getProperty("priceForecast.halfLife", "4"));
+                PriceForecast forecast = new PriceForecast(areaCode, timezone, halfLife);
+                forecasts.add(forecast);
+                return forecast;
+                
+            case "Tiered":
+                List<CostSource> tiers = new ArrayList<>();
+                for (String tier : config.getProperty("tiered.tiers",
+                        "EntsoeDayAhead, EntsoeAvgPrices").split(",")) {
+                    tiers.add(createCostSource(tier.trim(), config, dayAheadSources,
+                            forecasts, nested));
+                }
+                int latencyBudget = Integer.parseInt(
+                        config.getProperty("tiered.latencyBudget", "500"));
+                return new TieredCostSource(tiers, Duration.ofMillis(latencyBudget));
+                
+            case "Tariff":
+                String spotType = config.getProperty("tariff.source", "EntsoeDayAhead").trim();
+                CostSource spot = createCostSource(spotType, config, dayAheadSources, forecasts,
+                        nested);
+                TreeMap<LocalTime, Double> timeOfUse = new TreeMap<>();
+                for (String entry : config.getProperty("tariff.timeOfUse", "").split(",")) {
+                    if (entry.isBlank())
+                        continue;
+                    String[] parts = entry.split("=");
+                    timeOfUse.put(LocalTime.parse(parts[0].trim()),
+                            Double.parseDouble(parts[1].trim()));
+                }
+                return new TariffCostSource(spot, timezone,
+                        Double.parseDouble(config.getProperty("tariff.spotFactor", "0.1")),
+                        Double.parseDouble(config.getProperty("tariff.fees", "0")),
+                        timeOfUse,
+                        Double.parseDouble(config.getProperty("tariff.vat", "0")));
+                
+            default:
+                logger.error("Unknown cost source " + type);
+                System.exit(1);
+                return null;
+        }
     }
     
 }
@@ -24,8 +24,21 @@ public interface Optimizer {
     /**
      * Optimize the times at which the car should be charged.
      * @param costs this time series specifies the costs and the time interval for optimization
-     * @return 
+     * @return the schedule of times at which charging is enabled
      */
-    public TimeSeries<Boolean> optimize(TimeSeries<Double> costs);
+    public ChargingSchedule optimize(DoubleTimeSeries costs);
+    
+    /**
+     * Optimize the remaining part of an existing plan, e.g. because new cost information has
+     * become available. The part of {@code previous} before the start of {@code costs} has
+     * already been carried out and is not changed.
+     * @param costs this time series specifies the costs and the remaining time interval
+     * @param previous the plan that is to be replaced
+     * @return the schedule for the remaining time interval
+     */
+    public default ChargingSchedule reoptimize(DoubleTimeSeries costs,
+            ChargingSchedule previous) {
+        return optimize(costs);
+    }
     
  }
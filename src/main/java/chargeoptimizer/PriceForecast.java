@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forecasts prices from a weekly profile: for every local hour of the week, an exponentially
+ * weighted average of the past prices in that hour is kept. Every new price updates its hour in
+ * constant time. Until an hour has seen any price, the average prices of
+ * {@code EntsoeAvgPrices} are used for it, if they are known for the area.
+ */
+public class PriceForecast implements CostSource {
+    
+    final Logger logger = LoggerFactory.getLogger(PriceForecast.class);
+    
+    static final int HOURS_PER_WEEK = 7 * 24;
+    // the epoch began on a Thursday; shift hour indices to start on Monday
+    private static final long EPOCH_HOUR_OF_WEEK = 3 * 24;
+    private static final long HOUR_MILLIS = 3600 * 1000;
+    
+    private final String areaEIC;
+    private final ZoneId timezone;
+    private final double halfLifeWeeks;
+    // weight of a new price covering one hour
+    private final double hourlyWeight;
+    
+    private final double[] profile = new double[HOURS_PER_WEEK];
+    private long lastTrainedMillis = Long.MIN_VALUE;
+    private long dataVersion = 0;
+    
+    /**
+     * @param areaEIC the area, used for the initial profile
+     * @param timezone the time zone in which the weekly profile is kept
+     * @param halfLifeWeeks the number of weeks after which the weight of a price has halved
+     */
+    public PriceForecast(String areaEIC, ZoneId timezone, double halfLifeWeeks) {
+        this.areaEIC = areaEIC;
+        this.timezone = timezone;
+        this.halfLifeWeeks = halfLifeWeeks;
+        this.hourlyWeight = 1. - Math.pow(0.5, 1. / halfLifeWeeks);
+        
+        double[] averages = EntsoeAvgPrices.areaPrices.get(areaEIC);
+        for (int hour = 0; hour < HOURS_PER_WEEK; hour++)
+            profile[hour] = (averages == null) ? Double.NaN : averages[hour % 24];
+        
+        logger.info("areaEIC = " + areaEIC + ", timezone = " + timezone + ", halfLifeWeeks = " +
+                halfLifeWeeks);
+    }
+    
+    /**
+     * Update the profile with new prices. Prices which are not later than the prices seen so
+     * far are ignored, so the same prices can be passed several times.
+     * @param prices
+     */
+    public synchronized void train(DoubleTimeSeries prices) {
+        long startMillis = TimeUtils.toEpochMillis(prices.getStart());
+        long granularityMillis = TimeUtils.granularityMillis(prices.getGranularity());
+        // the weight is scaled so that four quarter-hours count as much as one hour
+        double weight = (granularityMillis == HOUR_MILLIS) ? hourlyWeight :
+                1. - Math.pow(1. - hourlyWeight, (double) granularityMillis / HOUR_MILLIS);
+        ZoneRules rules = timezone.getRules();
+        
+        boolean updated = false;
+        for (int i = 0; i < prices.size(); i++) {
+            long time = startMillis + i * granularityMillis;
+            double price = prices.getAsDouble(i);
+            if (time <= lastTrainedMillis || Double.isNaN(price))
+                continue;
+            
+            long offset = rules.getOffset(Instant.ofEpochMilli(time)).getTotalSeconds() * 1000L;
+            int hour = hourOfWeek(time + offset);
+            profile[hour] = Double.isNaN(profile[hour]) ? price :
+                    profile[hour] + weight * (price - profile[hour]);
+            lastTrainedMillis = time;
+            updated = true;
+        }
+        if (updated)
+            dataVersion++;
+    }
+    
+    /**
+     * Update the profile with several series of prices, in chronological order.
+     * @param prices
+     */
+    public void train(List<DoubleTimeSeries> prices) {
+        prices.forEach(this::train);
+    }
+    
+    @Override
+    public synchronized Double getCostAt(LocalDateTime time) {
+        long epochMillis = TimeUtils.toEpochMillis(time);
+        long offset = timezone.getRules().getOffset(Instant.ofEpochMilli(epochMillis))
+                .getTotalSeconds() * 1000L;
+        double price = profile[hourOfWeek(epochMillis + offset)];
+        return Double.isNaN(price) ? null : price;
+    }
+    
+    /**
+     * Looks up the profile directly; the UTC offset is only recalculated at offset transitions.
+     */
+    @Override
+    public synchronized DoubleTimeSeries getCosts(LocalDateTime start, LocalDateTime end,
+            Duration granularity) {
+        ZoneRules rules = timezone.getRules();
+        long startMillis = TimeUtils.toEpochMillis(start);
+        long granularityMillis = TimeUtils.granularityMillis(granularity);
+        int n = (int) Math.max(0, TimeUtils.ceilIndex(startMillis, granularityMillis,
+                TimeUtils.toEpochMillis(end)));
+        double[] values = new double[n];
+        
+        long offsetValidUntil = Long.MIN_VALUE;
+        long offsetMillis = 0;
+        for (int i = 0; i < n; i++) {
+            long time = startMillis + i * granularityMillis;
+            if (time >= offsetValidUntil) {
+                Instant instant = Instant.ofEpochMilli(time);
+                offsetMillis = rules.getOffset(instant).getTotalSeconds() * 1000L;
+                ZoneOffsetTransition next = rules.nextTransition(instant);
+                offsetValidUntil = (next == null) ? Long.MAX_VALUE : next.toEpochSecond() * 1000;
+            }
+            values[i] = profile[hourOfWeek(time + offsetMillis)];
+        }
+        return new DoubleTimeSeries(start, granularity, values);
+    }
+    
+    @Override
+    public synchronized long getDataVersion() {
+        return dataVersion;
+    }
+    
+    /**
+     * The profile is in memory, and training does not wait for anything either.
+     */
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+    
+    /**
+     * @param localMillis local time in milliseconds since the local epoch
+     * @return the hour of the week, starting with 0 on Monday at midnight
+     */
+    private static int hourOfWeek(long localMillis) {
+        return (int) Math.floorMod(Math.floorDiv(localMillis, HOUR_MILLIS) + EPOCH_HOUR_OF_WEEK,
+                (long) HOURS_PER_WEEK);
+    }
+    
+    /**
+     * Get a copy of the current profile.
+     * @return the forecast prices for every hour of the week, starting on Monday at midnight
+     */
+    public synchronized double[] getProfile() {
+        return Arrays.copyOf(profile, HOURS_PER_WEEK);
+    }
+    
+    public String getAreaEIC() {
+        return areaEIC;
+    }
+
+    public double getHalfLifeWeeks() {
+        return halfLifeWeeks;
+    }
+    
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Persistent storage for prices, so that they do not need to be fetched again after a restart.
+ */
+public interface PriceStore {
+    
+    /**
+     * Store prices for an area; prices which are already stored for the same times are
+     * replaced. Unknown ({@code NaN}) prices are not stored.
+     * @param area
+     * @param prices time series of prices, each in its own resolution
+     */
+    public void storePrices(String area, List<DoubleTimeSeries> prices);
+    
+    /**
+     * Load the stored prices for an area from {@code start} (inclusive) to {@code end}
+     * (exclusive).
+     * @param area
+     * @param start UTC time
+     * @param end UTC time
+     * @return time series of consecutive prices with the same resolution; empty if nothing is
+     * stored
+     */
+    public List<DoubleTimeSeries> loadPrices(String area, LocalDateTime start,
+            LocalDateTime end);
+    
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * Calculates the charging statistics incrementally from the logged states, with the same
+ * results as the view {@code statistics_update}. For every period of uninterrupted connection
+ * with the car, the average price during charging and the average price if charging had occured
+ * for the same total time directly after the car was connected are calculated.
+ * 
+ * A sample lasts until the next sample, but if that is more than ten minutes later, only 60
+ * seconds are counted. A new period begins when the connection state changes or when more than
+ * ten minutes have elapsed since the last sample. Samples with unknown price are ignored.
+ * 
+ * The prefix sums of the lengths and prices of the samples in the current period are kept, so
+ * every sample is added in amortized constant time; they take memory in proportion to the
+ * number of samples in the period. Objects of this class are not thread-safe.
+ */
+public class StatisticsAggregator {
+
+    // samples further apart begin a new period
+    private static final long MAX_GAP_SECONDS = 600;
+    // samples longer than this only count for GAP_SAMPLE_MILLIS
+    private static final long MAX_SAMPLE_MILLIS = 600 * TimeUtils.MILLIS_PER_SECOND;
+    private static final long GAP_SAMPLE_MILLIS = 60 * TimeUtils.MILLIS_PER_SECOND;
+    // periods with less charging time are not reported
+    private static final long MIN_CHARGE_MILLIS = 120 * TimeUtils.MILLIS_PER_SECOND;
+    
+    // the last sample; its length is known when the next sample arrives
+    private boolean hasLast = false;
+    private long lastMillis;
+    private boolean lastConnected;
+    private boolean lastCharging;
+    private double lastPrice;
+    
+    // the current period of connection; prefix sums over its samples whose lengths are known,
+    // index 0 is the empty prefix
+    private long periodStart;
+    private int samples = 0;
+    private long[] millisSum = new long[64];
+    private double[] priceMillisSum = new double[64];
+    private long chargeMillis = 0;
+    private double chargePriceMillis = 0.;
+    
+    /**
+     * One row of the statistics.
+     */
+    public static class Period {
+        public final LocalDateTime periodStart;
+        public final LocalDateTime periodEnd;
+        public final double periodHours;
+        public final double chargeHours;
+        public final double avgPrice;
+        public final double avgPriceUnopt;
+
+        public Period(LocalDateTime periodStart, LocalDateTime periodEnd, double periodHours,
+                double chargeHours, double avgPrice, double avgPriceUnopt) {
+            this.periodStart = periodStart;
+            this.periodEnd = periodEnd;
+            this.periodHours = periodHours;
+            this.chargeHours = chargeHours;
+            this.avgPrice = avgPrice;
+            this.avgPriceUnopt = avgPriceUnopt;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + periodStart + " - " + periodEnd + ", " + chargeHours + " h charged, " +
+                    "avgPrice = " + avgPrice + ", avgPriceUnopt = " + avgPriceUnopt + "]";
+        }
+    }
+    
+    /**
+     * Add the next sample. Samples must be added in chronological order; a sample which is not
+     * later than the previous one is ignored.
+     * @param time
+     * @param carConnected
+     * @param charging
+     * @param price
+     * @return the statistics of the period which is finished by this sample, or null if no
+     * period has been finished or if it contains too little charging time
+     */
+    public Period add(LocalDateTime time, boolean carConnected, boolean charging, double price) {
+        if (Double.isNaN(price))
+            return null;
+        long millis = TimeUtils.toEpochMillis(time);
+        if (hasLast && millis <= lastMillis)
+            return null;
+        
+        Period finished = null;
+        boolean newPeriod = !hasLast;
+        if (hasLast) {
+            if (lastConnected) {
+                long length = millis - lastMillis;
+                addSample((length > MAX_SAMPLE_MILLIS) ? GAP_SAMPLE_MILLIS : length);
+            }
+            newPeriod = carConnected != lastConnected || Math.floorDiv(millis,
+                    TimeUtils.MILLIS_PER_SECOND) - Math.floorDiv(lastMillis,
+                    TimeUtils.MILLIS_PER_SECOND) > MAX_GAP_SECONDS;
+            if (newPeriod && lastConnected)
+                finished = statistics();
+        }
+        
+        if (newPeriod) {
+            periodStart = millis;
+            samples = 0;
+            chargeMillis = 0;
+            chargePriceMillis = 0.;
+        }
+        hasLast = true;
+        lastMillis = millis;
+        lastConnected = carConnected;
+        lastCharging = charging;
+        lastPrice = price;
+        return finished;
+    }
+    
+    /**
+     * Get the statistics of the current period as far as it is known; the last sample is
+     * counted with zero length.
+     * @return the statistics, or null if the car is not connected or if the period contains
+     * too little charging time
+     */
+    public Period current() {
+        return (hasLast && lastConnected) ? statistics() : null;
+    }
+    
+    private void addSample(long length) {
+        if (samples + 1 == millisSum.length) {
+            millisSum = Arrays.copyOf(millisSum, 2 * millisSum.length);
+            priceMillisSum = Arrays.copyOf(priceMillisSum, 2 * priceMillisSum.length);
+        }
+        millisSum[samples + 1] = millisSum[samples] + length;
+        priceMillisSum[samples + 1] = priceMillisSum[samples] + lastPrice * length;
+        samples++;
+        if (lastCharging) {
+            chargeMillis += length;
+            chargePriceMillis += lastPrice * length;
+        }
+    }
+    
+    private Period statistics() {
+        if (chargeMillis <= MIN_CHARGE_MILLIS)
+            return null;
+        
+        // the samples from the start of the period whose lengths add up to at most the
+        // charging time; the prefix sums never decrease
+        int unopt = Arrays.binarySearch(millisSum, 0, samples + 1, chargeMillis);
+        if (unopt < 0) {
+            unopt = -unopt - 2;
+        } else {
+            while (unopt < samples && millisSum[unopt + 1] == chargeMillis)
+                unopt++;
+        }
+        
+        long periodMillis = millisSum[samples];
+        return new Period(TimeUtils.ofEpochMillis(periodStart),
+                TimeUtils.ofEpochMillis(periodStart + periodMillis), periodMillis / 3.6e6,
+                chargeMillis / 3.6e6, chargePriceMillis / chargeMillis,
+                priceMillisSum[unopt] / millisSum[unopt]);
+    }
+
+}
@@ -18,9 +18,18 @@ package chargeoptimizer;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.flywaydb.core.Flyway;
 import org.flywaydb.core.api.FlywayException;
 import org.h2.jdbcx.JdbcConnectionPool;
@@ -28,14 +37,139 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Manage connection to a database where the current state can be logged for statistics.
+ * Manage connection to a database where the current state can be logged for statistics. The
+ * database also stores fetched prices.
+ * 
+ * Logged states are put into a bounded queue and written by a separate thread in batches, so
+ * that a slow database never delays the caller; a batch is written when it has reached the
+ * flush size or when its oldest entry has waited for the flush interval. If the queue is full,
+ * the caller waits for a short time and then drops the entry.
+ * 
+ * In the log mode {@code CHANGES}, consecutive states with equal values are combined into one
+ * row of the chargelog, which records the number of samples and their interval. A run is
+ * written when the values change, when a sample is missing, or as a heartbeat when the run has
+ * lasted for the heartbeat interval.
+ * 
+ * The writer also maintains the table {@code statistics}: every state is passed to a
+ * {@code StatisticsAggregator} once its row has been committed to the chargelog, and a period is
+ * merged into the table when it is finished, and when the log is closed. The writer is started
+ * by the first logged state, so the settings made before apply to all states. At start, it
+ * reads the states since the last period in the table again so that an interrupted period is
+ * continued.
  */
-public class StatisticsDatabase {
+public class StatisticsDatabase implements PriceStore {
     
     private final Logger logger = LoggerFactory.getLogger(StatisticsDatabase.class);
 
     private final JdbcConnectionPool connPool;
     
+    private static final int LOG_QUEUE_CAPACITY = 10000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+    // the view chargelog_samples expands runs of at most this length
+    private static final int MAX_RUN_SAMPLES = 1440;
+    // samples further apart begin a new period in the statistics, so they are never combined
+    private static final long MAX_SAMPLE_INTERVAL_MILLIS = 600 * 1000;
+    // marks the end of the log; the writer stops when it takes this entry from the queue
+    private static final LogEntry END_OF_LOG = new LogEntry(null, null, false, Double.NaN);
+    
+    private final BlockingQueue<LogEntry> logQueue = new ArrayBlockingQueue<>(LOG_QUEUE_CAPACITY);
+    // started by the first logged state; guarded by this
+    private Thread logWriter;
+    private volatile boolean closed = false;
+    private volatile Duration flushInterval = Duration.ofMinutes(5);
+    private volatile int flushSize = 100;
+    private volatile LogMode logMode = LogMode.ALL;
+    private volatile Duration heartbeatInterval = Duration.ofMinutes(15);
+    // maximum time for which logState waits if the queue is full
+    private volatile Duration enqueueTimeout = Duration.ofMillis(100);
+    private final AtomicLong writtenEntries = new AtomicLong();
+    private final AtomicLong droppedEntries = new AtomicLong();
+    // only accessed by the writer thread
+    private final StatisticsAggregator statistics = new StatisticsAggregator();
+    private Connection logConn;
+    private PreparedStatement logStmt;
+    private PreparedStatement statisticsStmt;
+    
+    /**
+     * Which states are written to the chargelog.
+     */
+    public enum LogMode {
+        /** every state in its own row */
+        ALL,
+        /** one row for every run of states with equal values */
+        CHANGES
+    }
+    
+    /**
+     * One logged state.
+     */
+    private static class LogEntry {
+        final LocalDateTime time;
+        final Charger.State state;
+        final boolean chargingAllowed;
+        final double price;
+        
+        LogEntry(LocalDateTime time, Charger.State state, boolean chargingAllowed,
+                double price) {
+            this.time = time;
+            this.state = state;
+            this.chargingAllowed = chargingAllowed;
+            this.price = price;
+        }
+    }
+    
+    /**
+     * One row of the chargelog: a run of {@code samples} states with equal values, logged every
+     * {@code sampleInterval} seconds from {@code time} on.
+     */
+    private static class LogRow {
+        final LocalDateTime time;
+        final long startMillis;
+        final boolean carConnected;
+        final boolean charging;
+        final boolean chargingAllowed;
+        final double price;
+        int samples = 1;
+        int sampleInterval = 0;
+        
+        LogRow(LogEntry entry) {
+            time = entry.time;
+            startMillis = TimeUtils.toEpochMillis(entry.time);
+            carConnected = entry.state.isConnected();
+            charging = entry.state == Charger.State.CHARGING;
+            chargingAllowed = entry.chargingAllowed;
+            price = entry.price;
+        }
+        
+        /**
+         * Add a state to this run if it has the same values and follows after the same
+         * interval as the previous states.
+         * @param entry
+         * @param maxRunMillis the maximum time from the first to the last state of a run
+         * @return true if the state has been added
+         */
+        boolean extend(LogEntry entry, long maxRunMillis) {
+            if (samples >= MAX_RUN_SAMPLES || entry.state.isConnected() != carConnected ||
+                    (entry.state == Charger.State.CHARGING) != charging ||
+                    entry.chargingAllowed != chargingAllowed ||
+                    Double.compare(entry.price, price) != 0)
+                return false;
+            
+            long millis = TimeUtils.toEpochMillis(entry.time);
+            long interval = (samples == 1) ? millis - startMillis :
+                    sampleInterval * TimeUtils.MILLIS_PER_SECOND;
+            if (interval <= 0 || interval % TimeUtils.MILLIS_PER_SECOND != 0 ||
+                    interval > MAX_SAMPLE_INTERVAL_MILLIS ||
+                    millis != startMillis + samples * interval ||
+                    millis - startMillis >= maxRunMillis)
+                return false;
+            
+            sampleInterval = (int) (interval / TimeUtils.MILLIS_PER_SECOND);
+            samples++;
+            return true;
+        }
+    }
+    
     public StatisticsDatabase(String databaseUrl, String user, String password) {
         logger.info("databaseUrl = " + databaseUrl + ", user = " + user);
         
@@ -48,28 +182,501 @@ public class StatisticsDatabase {
         connPool = JdbcConnectionPool.create(databaseUrl, user, password);
     }
     
+    /**
+     * Start the writer thread if it is not running yet.
+     * @return false if the log has already been closed
+     */
+    private synchronized boolean startLogWriter() {
+        if (closed)
+            return false;
+        if (logWriter == null) {
+            logWriter = new Thread(this::writeLog, "StatisticsDatabase");
+            logWriter.setDaemon(true);
+            logWriter.start();
+        }
+        return true;
+    }
+    
+    /**
+     * Queue a state for logging; returns immediately unless the queue is full.
+     * @param time
+     * @param state
+     * @param chargingAllowed
+     * @param price
+     */
     public void logState(LocalDateTime time, Charger.State state, boolean chargingAllowed, double price) {
         logger.debug("Logging at " + time + ", state=" + state +
                     ", chargingAllowed=" + chargingAllowed +
                     ", price=" + price);
         
+        boolean queued = false;
+        if (startLogWriter()) {
+            try {
+                queued = logQueue.offer(new LogEntry(time, state, chargingAllowed, price),
+                        enqueueTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        if (!queued) {
+            long dropped = droppedEntries.incrementAndGet();
+            if (dropped == 1 || dropped % 100 == 0)
+                logger.warn("Could not queue log entry; " + dropped + " entries dropped so far.");
+        }
+    }
+    
+    /**
+     * Write all queued log entries and stop the writer thread. Prices can still be stored and
+     * loaded afterwards, but further states are not logged any more. Waits at most for the
+     * close timeout to add the end of the log to the queue, and again for the writer to end.
+     */
+    public void close() {
+        Thread logWriter;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            logWriter = this.logWriter;
+        }
+        if (logWriter == null) {
+            logger.info("Log closed; no entries logged.");
+            return;
+        }
+        
+        try {
+            // if the queue stays full, the writer is stuck; an interrupt makes it write the
+            // rest of the queue and stop
+            if (!logQueue.offer(END_OF_LOG, CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Log queue is still full; interrupting the writer.");
+                logWriter.interrupt();
+            }
+            logWriter.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (logWriter.isAlive()) {
+            logger.error("Could not write all log entries; " + logQueue.size() +
+                    " entries left.");
+            logWriter.interrupt();
+        } else if (!logQueue.isEmpty()) {
+            logger.error("Log writer has stopped; " + logQueue.size() + " entries left.");
+        } else {
+            logger.info("Log written; " + writtenEntries.get() + " entries written, " +
+                    droppedEntries.get() + " dropped.");
+        }
+    }
+    
+    /**
+     * Take batches of log entries from the queue and write them, until the end of the log is
+     * reached. The connection and the prepared statements are kept for all batches.
+     */
+    private void writeLog() {
+        readStatistics();
+        
+        List<LogRow> batch = new ArrayList<>();
+        // finished periods which have not been merged into the table yet
+        List<StatisticsAggregator.Period> periods = new ArrayList<>();
+        // the run which may still be extended; it is written once it is complete
+        LogRow run = null;
+        boolean end = false;
+        
+        while (!end) {
+            try {
+                LogEntry entry = logQueue.take();
+                long deadline = System.nanoTime() + flushInterval.toNanos();
+                while (true) {
+                    if (entry == END_OF_LOG) {
+                        end = true;
+                        break;
+                    }
+                    run = addEntry(entry, run, batch);
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= flushSize || wait <= 0)
+                        break;
+                    entry = logQueue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (entry == null)
+                        break;
+                }
+            } catch (InterruptedException ex) {
+                end = true;
+            }
+            if (end) {
+                List<LogEntry> rest = new ArrayList<>();
+                logQueue.drainTo(rest);
+                for (LogEntry entry : rest) {
+                    if (entry != END_OF_LOG)
+                        run = addEntry(entry, run, batch);
+                }
+                if (run != null)
+                    batch.add(run);
+            }
+            
+            // only states which are in the chargelog count for the statistics, like in the
+            // view statistics_update
+            if (!batch.isEmpty() && writeRows(batch)) {
+                for (LogRow row : batch)
+                    addStatistics(row, periods);
+            }
+            batch.clear();
+            if (end) {
+                StatisticsAggregator.Period current = statistics.current();
+                if (current != null)
+                    periods.add(current);
+            }
+            // periods which could not be merged are tried again with the next batch
+            if (!periods.isEmpty() && mergeStatistics(periods))
+                periods.clear();
+        }
+        
+        if (!periods.isEmpty())
+            logger.error(periods.size() + " statistics periods dropped.");
+        closeLogConnection();
+    }
+    
+    /**
+     * Insert a batch of rows into the chargelog in one transaction.
+     * @return true if the rows have been committed
+     */
+    private boolean writeRows(List<LogRow> batch) {
+        int entries = 0;
+        for (LogRow row : batch)
+            entries += row.samples;
+        try {
+            openLogConnection();
+            for (LogRow row : batch) {
+                logStmt.setTimestamp(1, Timestamp.valueOf(row.time));
+                logStmt.setBoolean(2, row.carConnected);
+                logStmt.setBoolean(3, row.charging);
+                logStmt.setBoolean(4, row.chargingAllowed);
+                logStmt.setDouble(5, row.price);
+                logStmt.setInt(6, row.samples);
+                logStmt.setInt(7, row.sampleInterval);
+                logStmt.addBatch();
+            }
+            logStmt.executeBatch();
+            logConn.commit();
+            writtenEntries.addAndGet(entries);
+            logger.debug("Wrote " + entries + " log entries in " + batch.size() + " rows.");
+            return true;
+        } catch (SQLException | RuntimeException ex) {
+            // the writer must go on, otherwise the queue fills up and nothing is logged
+            logger.error("Error accessing database; " + entries + " log entries dropped.", ex);
+            droppedEntries.addAndGet(entries);
+            closeLogConnection();
+            return false;
+        }
+    }
+    
+    /**
+     * Merge finished periods into the table {@code statistics} in one transaction.
+     * @return true if the periods have been committed
+     */
+    private boolean mergeStatistics(List<StatisticsAggregator.Period> periods) {
+        try {
+            openLogConnection();
+            for (StatisticsAggregator.Period period : periods)
+                addStatistics(statisticsStmt, period);
+            statisticsStmt.executeBatch();
+            logConn.commit();
+            return true;
+        } catch (SQLException | RuntimeException ex) {
+            logger.error("Error accessing database; " + periods.size() +
+                    " statistics periods not written yet.", ex);
+            closeLogConnection();
+            return false;
+        }
+    }
+    
+    private void openLogConnection() throws SQLException {
+        if (logConn != null)
+            return;
+        try {
+            logConn = connPool.getConnection();
+            logConn.setAutoCommit(false);
+            logStmt = logConn.prepareStatement(
+                    "INSERT INTO chargelog" +
+                    "  (logtime, carconnected, charging, chargingAllowed, price, " +
+                    "   samples, sample_interval) " +
+                    "VALUES" +
+                    "  (?, ?, ?, ?, ?, ?, ?)");
+            statisticsStmt = prepareStatisticsMerge(logConn);
+        } catch (SQLException ex) {
+            closeLogConnection();
+            throw ex;
+        }
+    }
+    
+    private void closeLogConnection() {
+        closeQuietly(logConn, logStmt, statisticsStmt);
+        logConn = null;
+        logStmt = null;
+        statisticsStmt = null;
+    }
+    
+    /**
+     * Feed the states since the start of the last period in the table {@code statistics} to the
+     * aggregator, and merge all periods which are finished by them.
+     */
+    private void readStatistics() {
+        List<StatisticsAggregator.Period> periods = new ArrayList<>();
+        
         try (
             Connection conn = connPool.getConnection();
             PreparedStatement stmt = conn.prepareStatement(
-                    "INSERT INTO chargelog" +
-                    "  (logtime, carconnected, charging, chargingAllowed, price) " +
+                    "SELECT logtime, carconnected, charging, price FROM chargelog_samples " +
+                    "WHERE logtime >= COALESCE((SELECT MAX(period_start) FROM statistics), " +
+                    "  TIMESTAMP '1970-01-01 00:00:00') " +
+                    "ORDER BY logtime");
+        ) {
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    StatisticsAggregator.Period period = statistics.add(
+                            rs.getTimestamp(1).toLocalDateTime(), rs.getBoolean(2),
+                            rs.getBoolean(3), rs.getDouble(4));
+                    if (period != null)
+                        periods.add(period);
+                }
+            }
+            
+            if (!periods.isEmpty()) {
+                try (PreparedStatement statisticsStmt = prepareStatisticsMerge(conn)) {
+                    for (StatisticsAggregator.Period period : periods)
+                        addStatistics(statisticsStmt, period);
+                    statisticsStmt.executeBatch();
+                }
+            }
+            logger.debug("Statistics read; " + periods.size() + " periods updated.");
+        } catch (SQLException | RuntimeException ex) {
+            logger.error("Error accessing database.", ex);
+        }
+    }
+    
+    private PreparedStatement prepareStatisticsMerge(Connection conn) throws SQLException {
+        return conn.prepareStatement(
+                "MERGE INTO statistics" +
+                "  (period_start, period_end, period_hours, charge_hours, avg_price, " +
+                "   avg_price_unopt) " +
+                "KEY (period_start) " +
+                "VALUES" +
+                "  (?, ?, ?, ?, ?, ?)");
+    }
+    
+    private void addStatistics(PreparedStatement stmt, StatisticsAggregator.Period period)
+            throws SQLException {
+        stmt.setTimestamp(1, Timestamp.valueOf(period.periodStart));
+        stmt.setTimestamp(2, Timestamp.valueOf(period.periodEnd));
+        stmt.setDouble(3, period.periodHours);
+        stmt.setDouble(4, period.chargeHours);
+        stmt.setDouble(5, period.avgPrice);
+        stmt.setDouble(6, period.avgPriceUnopt);
+        stmt.addBatch();
+    }
+    
+    /**
+     * Pass the samples of a written row to the statistics; finished periods are added to
+     * {@code periods}.
+     */
+    private void addStatistics(LogRow row, List<StatisticsAggregator.Period> periods) {
+        for (int k = 0; k < row.samples; k++) {
+            StatisticsAggregator.Period period = statistics.add(
+                    row.time.plusSeconds((long) k * row.sampleInterval), row.carConnected,
+                    row.charging, row.price);
+            if (period != null)
+                periods.add(period);
+        }
+    }
+    
+    /**
+     * Add a log entry to the open run if possible; otherwise, the open run is complete and
+     * moved to the batch, and the entry begins a new run.
+     * @return the open run after adding the entry
+     */
+    private LogRow addEntry(LogEntry entry, LogRow run, List<LogRow> batch) {
+        if (logMode == LogMode.ALL) {
+            if (run != null)
+                batch.add(run);
+            batch.add(new LogRow(entry));
+            return null;
+        }
+        
+        if (run != null && run.extend(entry, heartbeatInterval.toMillis()))
+            return run;
+        if (run != null)
+            batch.add(run);
+        return new LogRow(entry);
+    }
+    
+    private void closeQuietly(Connection conn, PreparedStatement... stmts) {
+        try {
+            for (PreparedStatement stmt : stmts) {
+                if (stmt != null)
+                    stmt.close();
+            }
+            if (conn != null)
+                conn.close();
+        } catch (SQLException ex) {
+            logger.debug("Could not close connection.", ex);
+        }
+    }
+    
+    @Override
+    public void storePrices(String area, List<DoubleTimeSeries> prices) {
+        logger.debug("Storing " + prices.size() + " periods of prices for " + area);
+        
+        try (
+            Connection conn = connPool.getConnection();
+            PreparedStatement stmt = conn.prepareStatement(
+                    "MERGE INTO prices" +
+                    "  (area, pricetime, resolution_seconds, price) " +
+                    "KEY (area, pricetime) " +
                     "VALUES" +
-                    "  (?, ?, ?, ?, ?)");
+                    "  (?, ?, ?, ?)");
+        ) {
+            for (DoubleTimeSeries period : prices) {
+                int resolution = (int) period.getGranularity().getSeconds();
+                for (int i = 0; i < period.size(); i++) {
+                    double price = period.getAsDouble(i);
+                    if (Double.isNaN(price))
+                        continue;
+                    stmt.setString(1, area);
+                    stmt.setTimestamp(2, Timestamp.valueOf(period.getTime(i)));
+                    stmt.setInt(3, resolution);
+                    stmt.setDouble(4, price);
+                    stmt.addBatch();
+                }
+            }
+            stmt.executeBatch();
+        } catch (SQLException ex) {
+            logger.error("Error accessing database.", ex);
+        }
+    }
+    
+    @Override
+    public List<DoubleTimeSeries> loadPrices(String area, LocalDateTime start,
+            LocalDateTime end) {
+        List<DoubleTimeSeries> prices = new ArrayList<>();
+        
+        try (
+            Connection conn = connPool.getConnection();
+            PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT pricetime, resolution_seconds, price FROM prices " +
+                    "WHERE area = ? AND pricetime >= ? AND pricetime < ? " +
+                    "ORDER BY pricetime");
         ) {
-            stmt.setTimestamp(1, Timestamp.valueOf(time));
-            stmt.setBoolean(2, state.isConnected());
-            stmt.setBoolean(3, state == Charger.State.CHARGING);
-            stmt.setBoolean(4, chargingAllowed);
-            stmt.setDouble(5, price);
-            stmt.execute();
+            stmt.setString(1, area);
+            stmt.setTimestamp(2, Timestamp.valueOf(start));
+            stmt.setTimestamp(3, Timestamp.valueOf(end));
+            try (ResultSet rs = stmt.executeQuery()) {
+                // collect runs of consecutive prices with the same resolution
+                LocalDateTime runStart = null;
+                Duration runResolution = null;
+                LocalDateTime next = null;
+                double[] run = new double[96];
+                int runLength = 0;
+                while (rs.next()) {
+                    LocalDateTime time = rs.getTimestamp(1).toLocalDateTime();
+                    Duration resolution = Duration.ofSeconds(rs.getInt(2));
+                    if (runLength > 0 && !(time.equals(next) && resolution.equals(runResolution))) {
+                        prices.add(new DoubleTimeSeries(runStart, runResolution,
+                                Arrays.copyOf(run, runLength)));
+                        runLength = 0;
+                    }
+                    if (runLength == 0) {
+                        runStart = time;
+                        runResolution = resolution;
+                    }
+                    if (runLength == run.length)
+                        run = Arrays.copyOf(run, 2 * runLength);
+                    run[runLength++] = rs.getDouble(3);
+                    next = time.plus(resolution);
+                }
+                if (runLength > 0)
+                    prices.add(new DoubleTimeSeries(runStart, runResolution,
+                            Arrays.copyOf(run, runLength)));
+            }
         } catch (SQLException ex) {
             logger.error("Error accessing database.", ex);
         }
+        
+        return prices;
+    }
+
+    public Duration getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Set the maximum time for which a log entry waits in the queue before it is written.
+     * @param flushInterval
+     */
+    public void setFlushInterval(Duration flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    /**
+     * Set the number of log entries which are written together at most.
+     * @param flushSize
+     */
+    public void setFlushSize(int flushSize) {
+        this.flushSize = flushSize;
+    }
+
+    public LogMode getLogMode() {
+        return logMode;
+    }
+
+    public void setLogMode(LogMode logMode) {
+        this.logMode = logMode;
+    }
+
+    public Duration getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Set the maximum time covered by one row in the log mode {@code CHANGES}.
+     * @param heartbeatInterval
+     */
+    public void setHeartbeatInterval(Duration heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public Duration getEnqueueTimeout() {
+        return enqueueTimeout;
+    }
+
+    /**
+     * Set the maximum time for which {@code logState} waits if the queue is full.
+     * @param enqueueTimeout
+     */
+    public void setEnqueueTimeout(Duration enqueueTimeout) {
+        this.enqueueTimeout = enqueueTimeout;
+    }
+
+    /**
+     * @return the number of log entries written to the database so far
+     */
+    public long getWrittenEntries() {
+        return writtenEntries.get();
+    }
+
+    /**
+     * @return the number of log entries which could not be queued or written
+     */
+    public long getDroppedEntries() {
+        return droppedEntries.get();
+    }
+
+    /**
+     * @return the number of log entries waiting to be written
+     */
+    public int getQueuedEntries() {
+        return logQueue.size();
     }
     
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns spot prices into retail prices, for example in ct/kWh. The cost of every slot is
+ * {@code (spot * spotFactor + fees + timeOfUseFee) * (1 + vat)}, where the time-of-use fee
+ * depends on the local time of day.
+ *
+ * For every local day, the tariff is compiled into a list of UTC times at which the fee
+ * changes; a range of costs is then transformed in one pass over the spot prices. Compiled
+ * days are cached.
+ */
+public class TariffCostSource implements CostSource {
+    
+    final Logger logger = LoggerFactory.getLogger(TariffCostSource.class);
+    
+    // number of compiled days in the cache
+    private static final int MAX_CACHED_DAYS = 16;
+    
+    private final CostSource spot;
+    private final ZoneId timezone;
+    private final double spotFactor;
+    private final double fees;
+    private final NavigableMap<LocalTime, Double> timeOfUse;
+    private final double vat;
+    
+    private final Map<LocalDate, CompiledDay> compiledDays =
+            new LinkedHashMap<LocalDate, CompiledDay>(MAX_CACHED_DAYS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LocalDate, CompiledDay> eldest) {
+            return size() > MAX_CACHED_DAYS;
+        }
+    };
+    
+    /**
+     * The tariff of one local day: from {@code changeMillis[k]} on, the cost is
+     * {@code spot * scale + offset[k]}.
+     */
+    private static class CompiledDay {
+        final long startMillis;
+        final long endMillis;
+        final long[] changeMillis;
+        final double[] offset;
+        
+        CompiledDay(long startMillis, long endMillis, long[] changeMillis, double[] offset) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.changeMillis = changeMillis;
+            this.offset = offset;
+        }
+        
+        int segment(long epochMillis) {
+            int k = 0;
+            while (k + 1 < changeMillis.length && epochMillis >= changeMillis[k + 1])
+                k++;
+            return k;
+        }
+    }
+    
+    /**
+     * @param spot the source of the spot prices
+     * @param timezone the time zone of the time-of-use table
+     * @param spotFactor factor for the spot prices, e.g. 0.1 to convert EUR/MWh to ct/kWh
+     * @param fees fees and surcharges which are added to every price
+     * @param timeOfUse additional fees, each valid from its local time of day until the next
+     * entry; the last entry also applies before the first one. May be empty.
+     * @param vat the value-added tax rate, e.g. 0.19
+     */
+    public TariffCostSource(CostSource spot, ZoneId timezone, double spotFactor, double fees,
+            NavigableMap<LocalTime, Double> timeOfUse, double vat) {
+        this.spot = spot;
+        this.timezone = timezone;
+        this.spotFactor = spotFactor;
+        this.fees = fees;
+        this.timeOfUse = new TreeMap<>(timeOfUse);
+        this.vat = vat;
+        
+        logger.info("spotFactor = " + spotFactor + ", fees = " + fees + ", timeOfUse = " +
+                timeOfUse + ", vat = " + vat);
+    }
+    
+    @Override
+    public Double getCostAt(LocalDateTime time) {
+        Double cost = spot.getCostAt(time);
+        if (cost == null)
+            return null;
+        long epochMillis = TimeUtils.toEpochMillis(time);
+        CompiledDay day = compiledDay(time.atZone(TimeUtils.UTC)
+                .withZoneSameInstant(timezone).toLocalDate());
+        return cost * scale() + day.offset[day.segment(epochMillis)];
+    }
+    
+    /**
+     * Fetches the spot prices for the whole range and transforms them in one pass; unknown
+     * spot prices stay unknown.
+     */
+    @Override
+    public DoubleTimeSeries getCosts(LocalDateTime start, LocalDateTime end,
+            Duration granularity) {
+        DoubleTimeSeries spotCosts = spot.getCosts(start, end, granularity);
+        double[] values = spotCosts.toArray();
+        if (values.length == 0)
+            return spotCosts;
+        
+        long startMillis = TimeUtils.toEpochMillis(start);
+        long granularityMillis = TimeUtils.granularityMillis(granularity);
+        double scale = scale();
+        LocalDate date = start.atZone(TimeUtils.UTC).withZoneSameInstant(timezone)
+                .toLocalDate();
+        CompiledDay day = compiledDay(date);
+        int k = day.segment(startMillis);
+        for (int i = 0; i < values.length; i++) {
+            long time = startMillis + i * granularityMillis;
+            while (time >= day.endMillis) {
+                date = date.plusDays(1);
+                day = compiledDay(date);
+                k = 0;
+            }
+            while (k + 1 < day.changeMillis.length && time >= day.changeMillis[k + 1])
+                k++;
+            values[i] = values[i] * scale + day.offset[k];
+        }
+        return new DoubleTimeSeries(start, granularity, values);
+    }
+    
+    @Override
+    public long getDataVersion() {
+        return spot.getDataVersion();
+    }
+    
+    @Override
+    public boolean isNonBlocking() {
+        return spot.isNonBlocking();
+    }
+    
+    @Override
+    public void stop() {
+        spot.stop();
+    }
+    
+    private double scale() {
+        return spotFactor * (1 + vat);
+    }
+    
+    /**
+     * Get the compiled tariff of a local day from the cache, compiling it if necessary.
+     */
+    private CompiledDay compiledDay(LocalDate date) {
+        synchronized (compiledDays) {
+            return compiledDays.computeIfAbsent(date, this::compile);
+        }
+    }
+    
+    private CompiledDay compile(LocalDate date) {
+        long startMillis = toEpochMillis(date, LocalTime.MIDNIGHT);
+        long endMillis = toEpochMillis(date.plusDays(1), LocalTime.MIDNIGHT);
+        
+        int n = timeOfUse.size() + 1;
+        long[] changeMillis = new long[n];
+        double[] offset = new double[n];
+        // the fee at midnight is the one of the last entry of the previous day
+        Map.Entry<LocalTime, Double> last = timeOfUse.lastEntry();
+        changeMillis[0] = startMillis;
+        offset[0] = (fees + ((last != null) ? last.getValue() : 0.)) * (1 + vat);
+        int k = 1;
+        for (Map.Entry<LocalTime, Double> entry : timeOfUse.entrySet()) {
+            changeMillis[k] = Math.max(toEpochMillis(date, entry.getKey()), startMillis);
+            offset[k] = (fees + entry.getValue()) * (1 + vat);
+            k++;
+        }
+        return new CompiledDay(startMillis, endMillis, changeMillis, offset);
+    }
+    
+    private long toEpochMillis(LocalDate date, LocalTime time) {
+        Instant instant = date.atTime(time).atZone(timezone).toInstant();
+        return instant.toEpochMilli();
+    }
+    
+    public double getSpotFactor() {
+        return spotFactor;
+    }
+    
+    public double getFees() {
+        return fees;
+    }
+    
+    public double getVat() {
+        return vat;
+    }
+    
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Combines several cost sources, for example day-ahead prices with average prices as a
+ * fallback. The tiers are queried in order; every cost which is unknown to one tier is taken
+ * from the next one. Tiers which may block are queried by a separate thread, and every call
+ * has a latency budget which is shared by all of them: a tier only gets the time that is left,
+ * and its query is abandoned when this time is up, so that the costs are always available
+ * within a bounded time. Tiers which answer from memory are called directly. A tier is skipped
+ * as long as an abandoned query to it is still running, so that a tier which hangs does not
+ * tie up more and more threads.
+ */
+public class TieredCostSource implements CostSource {
+    
+    final Logger logger = LoggerFactory.getLogger(TieredCostSource.class);
+    
+    private final List<CostSource> tiers;
+    private volatile Duration latencyBudget;
+    // for every tier, the number of abandoned queries which are still running
+    private final AtomicIntegerArray abandoned;
+    
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "TieredCostSource");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /**
+     * A query which is run by the executor.
+     */
+    private static class Query {
+        // the thread running the query, or null if it has not started or has ended
+        Thread thread;
+        boolean done;
+        boolean abandoned;
+    }
+    
+    /**
+     * Costs together with the tier that supplied each of them.
+     */
+    public static class TieredCosts {
+        private final DoubleTimeSeries costs;
+        private final byte[] tiers;
+        
+        TieredCosts(DoubleTimeSeries costs, byte[] tiers) {
+            this.costs = costs;
+            this.tiers = tiers;
+        }
+        
+        public DoubleTimeSeries getCosts() {
+            return costs;
+        }
+        
+        /**
+         * Get the tier which supplied a cost.
+         * @param index the index of the slot in the costs
+         * @return the index of the tier, or -1 if no tier knew the cost
+         */
+        public int getTier(int index) {
+            return tiers[index];
+        }
+    }
+    
+    /**
+     * @param tiers the cost sources, in the order in which they are queried
+     * @param latencyBudget the maximum time for a call, shared by all tiers which may block
+     */
+    public TieredCostSource(List<CostSource> tiers, Duration latencyBudget) {
+        if (tiers.size() > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("Too many tiers.");
+        this.tiers = new ArrayList<>(tiers);
+        this.abandoned = new AtomicIntegerArray(tiers.size());
+        this.latencyBudget = latencyBudget;
+        
+        logger.info("tiers = " + tiers.size() + ", latencyBudget = " + latencyBudget);
+    }
+    
+    @Override
+    public Double getCostAt(LocalDateTime time) {
+        long deadline = System.nanoTime() + latencyBudget.toNanos();
+        for (int tier = 0; tier < tiers.size(); tier++) {
+            CostSource source = tiers.get(tier);
+            Double cost = query(tier, () -> source.getCostAt(time), deadline);
+            if (cost != null && !cost.isNaN())
+                return cost;
+        }
+        return null;
+    }
+    
+    @Override
+    public DoubleTimeSeries getCosts(LocalDateTime start, LocalDateTime end,
+            Duration granularity) {
+        return getTieredCosts(start, end, granularity).getCosts();
+    }
+    
+    /**
+     * Gives the costs for a range of UTC times like {@code getCosts}, and which tier supplied
+     * each of them. Later tiers are only asked for the range of slots which are still unknown.
+     * @param start UTC time of the first slot
+     * @param end UTC time after the last slot
+     * @param granularity length of each slot
+     * @return the costs, with {@code NaN} where no tier knows them, and their tiers
+     */
+    public TieredCosts getTieredCosts(LocalDateTime start, LocalDateTime end,
+            Duration granularity) {
+        long startMillis = TimeUtils.toEpochMillis(start);
+        long granularityMillis = TimeUtils.granularityMillis(granularity);
+        int n = (int) Math.max(0, TimeUtils.ceilIndex(startMillis, granularityMillis,
+                TimeUtils.toEpochMillis(end)));
+        double[] values = new double[n];
+        Arrays.fill(values, Double.NaN);
+        byte[] supplier = new byte[n];
+        Arrays.fill(supplier, (byte) -1);
+        
+        long deadline = System.nanoTime() + latencyBudget.toNanos();
+        int first = 0;
+        int last = n;
+        for (int tier = 0; tier < tiers.size() && first < last; tier++) {
+            CostSource source = tiers.get(tier);
+            LocalDateTime from = TimeUtils.ofEpochMillis(startMillis + first * granularityMillis);
+            LocalDateTime to = TimeUtils.ofEpochMillis(startMillis + last * granularityMillis);
+            DoubleTimeSeries costs = query(tier, () -> source.getCosts(from, to, granularity),
+                    deadline);
+            if (costs == null)
+                continue;
+            
+            int size = Math.min(costs.size(), last - first);
+            for (int i = 0; i < size; i++) {
+                double cost = costs.getAsDouble(i);
+                if (Double.isNaN(values[first + i]) && !Double.isNaN(cost)) {
+                    values[first + i] = cost;
+                    supplier[first + i] = (byte) tier;
+                }
+            }
+            
+            // narrow the range to the slots which are still unknown
+            while (first < last && !Double.isNaN(values[first]))
+                first++;
+            while (last > first && !Double.isNaN(values[last-1]))
+                last--;
+        }
+        
+        return new TieredCosts(new DoubleTimeSeries(start, granularity, values), supplier);
+    }
+    
+    /**
+     * Gives a number that changes whenever one of the tiers has new data.
+     */
+    @Override
+    public long getDataVersion() {
+        long version = 0;
+        for (CostSource source : tiers)
+            version += source.getDataVersion();
+        return version;
+    }
+    
+    /**
+     * Tells whether all tiers answer from memory; then no query is run by a separate thread.
+     */
+    @Override
+    public boolean isNonBlocking() {
+        for (CostSource source : tiers) {
+            if (!source.isNonBlocking())
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Stop the threads for the queries and all tiers. Afterwards, only the tiers which answer
+     * from memory are queried.
+     */
+    @Override
+    public void stop() {
+        executor.shutdownNow();
+        for (CostSource source : tiers)
+            source.stop();
+    }
+    
+    /**
+     * Run a query of a tier until the deadline of the call; tiers which answer from memory are
+     * queried directly.
+     * @param deadline the value of {@code System.nanoTime()} at which the call must end
+     * @return the result, or null if the query failed, took too long, if there was no time left
+     * or if the tier is still busy with an abandoned query
+     */
+    private <T> T query(int tier, Callable<T> call, long deadline) {
+        if (tiers.get(tier).isNonBlocking()) {
+            try {
+                return call.call();
+            } catch (Exception ex) {
+                logger.error("Tier " + tier + " failed.", ex);
+                return null;
+            }
+        }
+        
+        if (abandoned.get(tier) > 0) {
+            logger.debug("Tier " + tier + " is still busy; skipped.");
+            return null;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            logger.warn("No time left in the latency budget for tier " + tier + ".");
+            return null;
+        }
+        
+        Query query = new Query();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                synchronized (query) {
+                    if (query.abandoned) {
+                        abandoned.decrementAndGet(tier);
+                        return null;
+                    }
+                    query.thread = Thread.currentThread();
+                }
+                try {
+                    return call.call();
+                } finally {
+                    synchronized (query) {
+                        query.thread = null;
+                        query.done = true;
+                        if (query.abandoned)
+                            abandoned.decrementAndGet(tier);
+                        // an interrupt of the abandoned query must not hit the next task
+                        Thread.interrupted();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.debug("Tier " + tier + " skipped after stop.");
+            return null;
+        }
+        try {
+            return future.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            // the query is not cancelled, so that it always accounts for itself when it ends
+            synchronized (query) {
+                if (!query.done) {
+                    query.abandoned = true;
+                    abandoned.incrementAndGet(tier);
+                    if (query.thread != null)
+                        query.thread.interrupt();
+                }
+            }
+            logger.warn("Tier " + tier + " exceeded the latency budget.");
+        } catch (ExecutionException ex) {
+            logger.error("Tier " + tier + " failed.", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+    
+    public List<CostSource> getTiers() {
+        return new ArrayList<>(tiers);
+    }
+
+    public Duration getLatencyBudget() {
+        return latencyBudget;
+    }
+
+    public void setLatencyBudget(Duration latencyBudget) {
+        this.latencyBudget = latencyBudget;
+    }
+    
+}
@@ -30,6 +30,9 @@ public class TimeSeries<Item extends Object> {
     
     private final LocalDateTime start;
     private final Duration granularity;
+    // start and granularity in milliseconds (since the epoch) for index calculations
+    private final long startMillis;
+    private final long granularityMillis;
     private final ArrayList<Item> items;
     private final Item itemBefore;
     private final Item itemAfter;
@@ -64,6 +67,8 @@ public class TimeSeries<Item extends Object> {
             Item itemAfter) {
         this.start = start;
         this.granularity = granularity;
+        this.startMillis = TimeUtils.toEpochMillis(start);
+        this.granularityMillis = TimeUtils.granularityMillis(granularity);
         this.items = new ArrayList<>(items);
         this.itemBefore = itemBefore;
         this.itemAfter = itemAfter;
@@ -94,10 +99,13 @@ public class TimeSeries<Item extends Object> {
             Function<LocalDateTime, Item> items, Item itemBefore, Item itemAfter) {
         this.start = start;
         this.granularity = granularity;
+        this.startMillis = TimeUtils.toEpochMillis(start);
+        this.granularityMillis = TimeUtils.granularityMillis(granularity);
         
+        long endMillis = TimeUtils.toEpochMillis(end);
         this.items = new ArrayList<>();
-        for (LocalDateTime time = start; time.isBefore(end); time = time.plus(granularity)) {
-            this.items.add(items.apply(time));
+        for (long time = startMillis; time < endMillis; time += granularityMillis) {
+            this.items.add(items.apply(TimeUtils.ofEpochMillis(time)));
         }
         
         this.itemBefore = itemBefore;
@@ -122,12 +130,12 @@ public class TimeSeries<Item extends Object> {
      * @return a new TimeSeries object with values replaced
      */
     public TimeSeries<Item> replaceNullsWith(Item replacementItem) {
-        ArrayList<Item> newItems = new ArrayList(items.size());
+        ArrayList<Item> newItems = new ArrayList<>(items.size());
         for (Item i : items)
             newItems.add((i == null) ? replacementItem : i);
-        return new TimeSeries(start, granularity, newItems, itemBefore, itemAfter);
+        return new TimeSeries<>(start, granularity, newItems, itemBefore, itemAfter);
     }
-
+    
     /**
      * Get the value at a certain time. Times between sampling points are possible; the value is
      * assumed to be constant between these points.
@@ -135,16 +143,34 @@ public class TimeSeries<Item extends Object> {
      * @return the item at this time
      */
     public Item getValueAt(LocalDateTime time) {
-        int pos = (int) Duration.between(start, time).dividedBy(granularity);
+        return getValueAt(TimeUtils.toEpochMillis(time));
+    }
+    
+    /**
+     * Get the value at a certain time given in milliseconds since the epoch.
+     * @param epochMillis
+     * @return the item at this time
+     */
+    public Item getValueAt(long epochMillis) {
+        long pos = TimeUtils.floorIndex(startMillis, granularityMillis, epochMillis);
         if (pos < 0) {
             return itemBefore;
         } else if (pos >= items.size()) {
             return itemAfter;
         } else {
-            return items.get(pos);
+            return items.get((int) pos);
         }
     }
     
+    /**
+     * Get the time at which the entry with a certain index begins.
+     * @param index
+     * @return the time
+     */
+    public LocalDateTime getTime(int index) {
+        return TimeUtils.ofEpochMillis(startMillis + index * granularityMillis);
+    }
+    
     /**
      * Get the start time of this time series.
      * @return the start time
@@ -158,7 +184,7 @@ public class TimeSeries<Item extends Object> {
      * @return the end time
      */
     public LocalDateTime getEnd() {
-        return start.plus(granularity.multipliedBy(items.size()));
+        return getTime(items.size());
     }
     
     /**
@@ -176,7 +202,7 @@ public class TimeSeries<Item extends Object> {
     public ArrayList<LocalDateTime> getTimes() {
         ArrayList<LocalDateTime> times = new ArrayList<>(items.size());
         for (int i = 0; i < items.size(); i++)
-            times.add(start.plus(granularity.multipliedBy(i)));
+            times.add(getTime(i));
         return times;
     }
     
@@ -195,7 +221,7 @@ public class TimeSeries<Item extends Object> {
     public ArrayList<Entry<Item>> getEntries() {
         ArrayList<Entry<Item>> entries = new ArrayList<>(items.size());
         for (int i = 0; i < items.size(); i++) {
-            entries.add(new Entry(start.plus(granularity.multipliedBy(i)), items.get(i)));
+            entries.add(new Entry<>(getTime(i), items.get(i)));
         }
         return entries;
     }
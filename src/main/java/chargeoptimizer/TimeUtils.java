@@ -20,7 +20,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.time.temporal.ChronoUnit;
+import java.time.ZoneOffset;
 
 /**
  * Frequently used time-related functions.
@@ -30,6 +30,10 @@ public class TimeUtils {
      * UTC time zone constant
      */
     public static final ZoneId UTC = ZoneId.of("UTC");
+    
+    static final long MILLIS_PER_SECOND = 1000;
+    static final long MILLIS_PER_DAY = 86400 * MILLIS_PER_SECOND;
+    static final int NANOS_PER_MILLI = 1000000;
 
     /**
      * Get current UTC time.
@@ -39,6 +43,48 @@ public class TimeUtils {
         return Instant.now().atZone(UTC).toLocalDateTime();
     }
     
+    /**
+     * Get current time in milliseconds since the epoch; does not allocate.
+     * @return the time
+     */
+    public static long nowMillis() {
+        return System.currentTimeMillis();
+    }
+    
+    /**
+     * Convert a UTC time to milliseconds since the epoch; does not allocate.
+     * @param time
+     * @return the number of milliseconds; sub-millisecond parts are truncated
+     */
+    public static long toEpochMillis(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) * MILLIS_PER_SECOND +
+                time.getNano() / NANOS_PER_MILLI;
+    }
+    
+    /**
+     * Convert milliseconds since the epoch to a UTC time.
+     * @param epochMillis
+     * @return the time
+     */
+    public static LocalDateTime ofEpochMillis(long epochMillis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, MILLIS_PER_SECOND),
+                (int) Math.floorMod(epochMillis, MILLIS_PER_SECOND) * NANOS_PER_MILLI,
+                ZoneOffset.UTC);
+    }
+    
+    /**
+     * Get the length of a granularity in milliseconds.
+     * @param granularity a positive duration which is a whole number of milliseconds
+     * @return the number of milliseconds
+     */
+    public static long granularityMillis(Duration granularity) {
+        long millis = granularity.toMillis();
+        if (millis <= 0 || granularity.getNano() % NANOS_PER_MILLI != 0)
+            throw new IllegalArgumentException("Granularity " + granularity +
+                    " is not a positive whole number of milliseconds.");
+        return millis;
+    }
+    
     /**
      * Round time to a given granularity; the time is always rounded towards the start of the day
      * and the rounded time is an integer multiple of granularity after the start of the day.
@@ -47,9 +93,56 @@ public class TimeUtils {
      * @return the rounded time
      */
     public static LocalDateTime roundTimeTo(LocalDateTime time, Duration granularity) {
-        LocalDateTime startOfDay = time.truncatedTo(ChronoUnit.DAYS);
-        long l = Duration.between(startOfDay, time).dividedBy(granularity);
-        return startOfDay.plus(granularity.multipliedBy(l));
+        return ofEpochMillis(roundTimeTo(toEpochMillis(time), granularityMillis(granularity)));
+    }
+    
+    /**
+     * Round time to a given granularity like {@link #roundTimeTo(LocalDateTime, Duration)}, but
+     * with all times in milliseconds since the epoch.
+     * @param epochMillis
+     * @param granularityMillis
+     * @return the rounded time
+     */
+    public static long roundTimeTo(long epochMillis, long granularityMillis) {
+        long startOfDay = epochMillis - Math.floorMod(epochMillis, MILLIS_PER_DAY);
+        return epochMillis - Math.floorMod(epochMillis - startOfDay, granularityMillis);
+    }
+    
+    /**
+     * Calculate the index of the time slot containing {@code time} in an evenly-spaced series of
+     * slots beginning at {@code start}; all times are in milliseconds since the epoch. Times
+     * before {@code start} give negative indices.
+     * @param start
+     * @param granularity
+     * @param time
+     * @return the index
+     */
+    public static long floorIndex(long start, long granularity, long time) {
+        return Math.floorDiv(time - start, granularity);
+    }
+    
+    /**
+     * Calculate the index of the first time slot beginning at or after {@code time} in an
+     * evenly-spaced series of slots beginning at {@code start}; all times are in milliseconds
+     * since the epoch.
+     * @param start
+     * @param granularity
+     * @param time
+     * @return the index
+     */
+    public static long ceilIndex(long start, long granularity, long time) {
+        return -Math.floorDiv(start - time, granularity);
+    }
+    
+    /**
+     * Restrict an index to a range.
+     * @param index
+     * @param min
+     * @param max
+     * @return {@code index} clipped to the range from {@code min} to {@code max} (both inclusive)
+     */
+    public static int clip(long index, int min, int max) {
+        return (int) Math.max(min, Math.min(max, index));
     }
     
     private TimeUtils() {
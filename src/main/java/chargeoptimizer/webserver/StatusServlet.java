@@ -18,18 +18,24 @@ package chargeoptimizer.webserver;
 
 import chargeoptimizer.ChargeOptimizer;
 import chargeoptimizer.Charger;
+import chargeoptimizer.ChargingSchedule;
 import chargeoptimizer.TimeUtils;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Simple REST interface to see the status of the ChargeOptimizer and to control it; can be used
@@ -37,26 +43,30 @@ import org.json.JSONObject;
  */
 public class StatusServlet extends HttpServlet {
     
+    final Logger logger = LoggerFactory.getLogger(StatusServlet.class);
+    
     // all LocalDateTimes are converted to the current time zone because OpenHAB currently does
     // not honor the time zone information, and then put into this format:
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
     
+    // maximum time to wait for a requested change before the status is returned
+    private static final long CHANGE_TIMEOUT_MILLIS = 2000;
+    
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-        LocalDateTime now = TimeUtils.now();
-        
         ChargeOptimizer chargeOptimizer = (ChargeOptimizer) getServletContext().
                 getAttribute("ChargeOptimizer");
         ExecutorService executor = chargeOptimizer.getExecutorService();
+        Future<?> change = null;
 
         String override = request.getParameter("override");
         if (override != null) {
             override = override.toLowerCase();
             
             if ("on".equals(override) || "true".equals(override)) {
-                executor.submit(() -> chargeOptimizer.setOverride(true));
+                change = executor.submit(() -> chargeOptimizer.setOverride(true));
             } else if ("off".equals(override) || "false".equals(override)) {
-                executor.submit(() -> chargeOptimizer.setOverride(false));
+                change = executor.submit(() -> chargeOptimizer.setOverride(false));
             }
         }
         
@@ -65,26 +75,50 @@ public class StatusServlet extends HttpServlet {
             chargingAllowed = chargingAllowed.toLowerCase();
             
             if ("on".equals(chargingAllowed) || "true".equals(chargingAllowed)) {
-                executor.submit(() -> chargeOptimizer.setChargerEnabled(true));
+                change = executor.submit(() -> chargeOptimizer.setChargerEnabled(true));
             } else if ("off".equals(chargingAllowed) || "false".equals(chargingAllowed)) {
-                executor.submit(() -> chargeOptimizer.setChargerEnabled(false));
+                change = executor.submit(() -> chargeOptimizer.setChargerEnabled(false));
             }            
         }
 
-        Charger.State chargerState = chargeOptimizer.getChargerState();
-        LocalDateTime lastStateChange = chargeOptimizer.getLastStateChange();
-        boolean isChargingAllowed = chargeOptimizer.getChargerEnabled();
-        LocalDateTime lastEnabledChange = chargeOptimizer.getLastEnabledChange();
-        boolean overrideActive = chargeOptimizer.getOverride();
-        
-        Double costNow = Double.NaN;
-        LocalDateTime chargingAllowedSinceOrWhen = null;
-        try {
-            costNow = executor.submit(() -> chargeOptimizer.costAt(now)).get();
-            chargingAllowedSinceOrWhen = (isChargingAllowed ? lastEnabledChange : 
-                executor.submit(() -> chargeOptimizer.nextEnabledStateChange(now)).get());
-        } catch (InterruptedException | ExecutionException ex) {
+        // a requested change is done by the executor, which publishes a new snapshot; the tasks
+        // run in order, so waiting for the last one is enough
+        if (change != null) {
+            try {
+                change.get(CHANGE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            } catch (ExecutionException ex) {
+                logger.error("Could not apply the requested change.", ex.getCause());
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "Could not apply the requested change.");
+                return;
+            } catch (TimeoutException ex) {
+                // the change stays queued and shows up in a later status
+                logger.warn("Requested change not applied within " + CHANGE_TIMEOUT_MILLIS +
+                        " ms.");
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "The requested change has not been applied yet.");
+                return;
+            }
         }
+        
+        // otherwise, the snapshot is at most one check interval old; reading it never waits for
+        // the executor, which may be busy communicating with the charger
+        ChargeOptimizer.Status status = chargeOptimizer.getStatus();
+        Charger.State chargerState = status.getChargerState();
+        LocalDateTime lastStateChange = status.getLastStateChange();
+        boolean isChargingAllowed = status.getChargerEnabled();
+        LocalDateTime lastEnabledChange = status.getLastEnabledChange();
+        boolean overrideActive = status.getOverride();
+        double costNow = status.getCost();
+        // the plan is immutable, so the next change is calculated for the time of the request
+        // and not taken from the snapshot, where it may be one check interval old
+        ChargingSchedule plan = status.getPlan();
+        LocalDateTime chargingAllowedSinceOrWhen = isChargingAllowed ? lastEnabledChange :
+                (plan != null) ? plan.nextTransition(TimeUtils.now()) : null;
 
         JSONObject jo = new JSONObject();
         jo.put("carConnected", chargerState.isConnected());
@@ -1,49 +1,99 @@
 /*  Calculate charging statistics. For every period of uninterrupted connection with the car,
     calculate the average price during charging and the average price if charging had occured for
-    the same total time directly after the car was connected. */
+    the same total time directly after the car was connected.
+    
+    The chargelog may contain runs of several samples in one row (see V6__Chargelog_runs.sql).
+    The runs are not expanded; the results are the same as for the samples of the view
+    chargelog_samples. Within a run, samples are at most ten minutes apart and the connection
+    state does not change, so a run always lies within one period. */
 CREATE OR REPLACE VIEW statistics_update AS
 WITH
 
-/*  select all rows as new as or newer than the last statistics entry and add columns with the
-    previous connection state, the previous time and the next time; exclude entries with price NaN */
+/*  select all samples as new as or newer than the last statistics entry; a run which begins
+    before it is shortened to its first sample at or after it; exclude entries with price NaN */
+su_chargelog_skip AS (
+    SELECT
+        c.logtime, c.carconnected, c.charging, c.chargingallowed, c.price, c.samples,
+        c.sample_interval,
+        CASE
+            WHEN t.since IS NULL OR c.logtime >= t.since THEN 0
+            WHEN c.sample_interval = 0 THEN c.samples
+            ELSE CAST(CEILING(CAST(DATEDIFF(MILLISECOND, c.logtime, t.since) AS DOUBLE) /
+                (1000 * c.sample_interval)) AS INT) END AS skipped
+    FROM chargelog c, (SELECT MAX(period_start) AS since FROM statistics) t
+    WHERE c.price <> SQRT(-1)
+),
+
+su_chargelog_runs AS (
+    SELECT
+        DATEADD(SECOND, skipped * sample_interval, logtime) AS logtime,
+        carconnected, charging, chargingallowed, price,
+        samples - skipped AS samples, sample_interval
+    FROM su_chargelog_skip
+    WHERE skipped < samples
+),
+
+/*  add columns with the previous connection state, the time of the last sample of the previous
+    run and the time of the next run */
 su_chargelog_laglead AS (
     SELECT
-        logtime, carconnected, charging, chargingallowed, price,
+        logtime, carconnected, charging, chargingallowed, price, samples,
+        sample_interval * 1000 AS sample_millis,
+        DATEADD(SECOND, (samples - 1) * sample_interval, logtime) AS logtime_last,
         LAG(carconnected) OVER (ORDER BY logtime) AS carconnected_prev,
-        LAG(logtime) OVER (ORDER BY logtime) AS logtime_prev,
+        LAG(DATEADD(SECOND, (samples - 1) * sample_interval, logtime))
+            OVER (ORDER BY logtime) AS logtime_prev,
         LEAD(logtime) OVER (ORDER BY logtime) AS logtime_next
-    FROM chargelog
-    WHERE COALESCE(logtime >= (SELECT MAX(period_start) AS period_start FROM statistics), TRUE)
-        AND price <> SQRT(-1)
+    FROM su_chargelog_runs
 ),
 
 /*  number periods; a new period begins when the connection state changes or when more than ten
-    minutes have elapsed since the last log entry; also calculate the time length of a log entry; if
-    that is longer than 600 seconds, only count 60 seconds */
+    minutes have elapsed since the last log entry; also calculate the time length of the samples
+    within the run and of its last sample; if that is longer than 600 seconds, only count 60
+    seconds */
 su_chargelog_periods AS (
     SELECT
-        logtime, carconnected, charging, chargingallowed, price,
+        logtime, carconnected, charging, chargingallowed, price, samples, sample_millis,
         SUM(CASE
                 WHEN carconnected <> carconnected_prev
                 OR DATEDIFF(SECOND, logtime_prev, logtime) > 600
                 THEN 1 ELSE 0 END)
             OVER (ORDER BY logtime RANGE UNBOUNDED PRECEDING) AS period,
-        CASE WHEN DATEDIFF(MILLISECOND, logtime, logtime_next) > 600000 THEN 60000
-            ELSE DATEDIFF(MILLISECOND, logtime, logtime_next) END AS millis
+        (samples - 1) * sample_millis AS inner_millis,
+        CASE WHEN DATEDIFF(MILLISECOND, logtime_last, logtime_next) > 600000 THEN 60000
+            ELSE COALESCE(DATEDIFF(MILLISECOND, logtime_last, logtime_next), 0) END AS last_millis
     FROM su_chargelog_laglead
-), 
+),
 
--- calculate running time sum and overall charging time over periods
+-- calculate the time sum of the previous runs and overall charging time over periods
 su_chargelog_sums AS (
     SELECT
-        period, logtime, charging, price, millis,
-        SUM(millis) OVER period_prev AS current_period_millis,
-        SUM(CASE WHEN charging THEN millis ELSE 0 END) OVER period_all AS charge_millis
+        period, logtime, charging, price, samples, sample_millis, last_millis,
+        inner_millis + last_millis AS millis,
+        COALESCE(SUM(inner_millis + last_millis) OVER period_prev, 0) AS prev_period_millis,
+        SUM(CASE WHEN charging THEN inner_millis + last_millis ELSE 0 END) OVER period_all
+            AS charge_millis
     FROM su_chargelog_periods
     WHERE carconnected
     WINDOW period_all AS (PARTITION BY period),
-           period_prev AS (PARTITION BY period ORDER BY logtime RANGE UNBOUNDED PRECEDING)
-), 
+           period_prev AS (PARTITION BY period ORDER BY logtime
+                ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING)
+),
+
+/*  calculate the time of the samples of each run which lie within the charging time counted
+    from the start of the period: all samples but the last one whose running time sum does not
+    exceed it, and the last sample if the whole run lies within it */
+su_chargelog_unopt AS (
+    SELECT
+        period, logtime, charging, price, millis, charge_millis,
+        CASE WHEN sample_millis = 0 THEN 0
+            ELSE LEAST(samples - 1, GREATEST(0, FLOOR(
+                CAST(charge_millis - prev_period_millis AS DOUBLE) / sample_millis)))
+            END * sample_millis +
+        CASE WHEN prev_period_millis + millis <= charge_millis THEN last_millis ELSE 0 END
+            AS unopt_millis
+    FROM su_chargelog_sums
+),
 
 /*  calculate sums over periods (unopt_pricesum and unopt_millis may be zero if first entry is
     larger than charging time (61 s > 60 s); workaround: charge_millis>120000 in the next step) */
@@ -54,19 +104,19 @@ su_period_sums AS (
         SUM(millis) AS period_millis,
         SUM(CASE WHEN charging THEN price*millis ELSE 0 END) AS pricesum,
         SUM(CASE WHEN charging THEN millis ELSE 0 END) AS charge_millis,
-        SUM(CASE WHEN current_period_millis <= charge_millis THEN price*millis ELSE 0 END)
-            AS unopt_pricesum,
-        SUM(CASE WHEN current_period_millis <= charge_millis THEN millis ELSE 0 END) AS unopt_millis
-    FROM su_chargelog_sums
+        SUM(price*unopt_millis) AS unopt_pricesum,
+        SUM(unopt_millis) AS unopt_millis
+    FROM su_chargelog_unopt
     GROUP BY period
 )
 
--- calculate averages
+/*  calculate averages; the hours are divided by a DOUBLE, because H2 calculates a quotient of
+    two decimals with a precision of 100000 digits, which takes seconds */
     SELECT
         period_start,
         DATEADD(MILLISECOND, period_millis, period_start) AS period_end,
-        period_millis/3.6e6 AS period_hours,
-        charge_millis/3.6e6 AS charge_hours,
+        period_millis / CAST(3.6e6 AS DOUBLE) AS period_hours,
+        charge_millis / CAST(3.6e6 AS DOUBLE) AS charge_hours,
         pricesum / charge_millis AS avg_price,
         unopt_pricesum / unopt_millis AS avg_price_unopt
     FROM su_period_sums
@@ -0,0 +1,8 @@
+/*  Expand the chargelog to one row per sample, as if every sample had been logged in its own row.
+    Runs never contain more than 1440 samples. */
+CREATE OR REPLACE VIEW chargelog_samples AS
+SELECT
+    DATEADD(SECOND, r.X * c.sample_interval, c.logtime) AS logtime,
+    c.carconnected, c.charging, c.chargingallowed, c.price
+FROM chargelog c
+JOIN SYSTEM_RANGE(0, 1439) r ON r.X < c.samples
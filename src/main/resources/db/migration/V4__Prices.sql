@@ -0,0 +1,6 @@
+CREATE TABLE prices (
+  area       VARCHAR(32)  NOT NULL,
+  pricetime  TIMESTAMP    NOT NULL,
+  price      DOUBLE       NOT NULL,
+  PRIMARY KEY (area, pricetime)
+);
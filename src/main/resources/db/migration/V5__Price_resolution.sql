@@ -0,0 +1 @@
+ALTER TABLE prices ADD COLUMN resolution_seconds INT NOT NULL DEFAULT 3600;
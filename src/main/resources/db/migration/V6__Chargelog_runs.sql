@@ -0,0 +1,5 @@
+/*  A row of the chargelog can stand for a run of samples with equal values, which were logged at
+    logtime, logtime + sample_interval seconds, and so on, samples times in total. Single samples
+    have sample_interval 0. */
+ALTER TABLE chargelog ADD COLUMN samples INT NOT NULL DEFAULT 1;
+ALTER TABLE chargelog ADD COLUMN sample_interval INT NOT NULL DEFAULT 0;
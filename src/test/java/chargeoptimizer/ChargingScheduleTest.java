@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the lookup of the plan by milliseconds since the epoch, which the charger check uses
+ * every few seconds, with the lookup by {@code LocalDateTime} as it was done before, in results
+ * and in time.
+ */
+public class ChargingScheduleTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(2023, 1, 1, 0, 0);
+    private static final Duration GRANULARITY = Duration.ofMinutes(15);
+    private static final int SLOTS = 2 * 96;
+    private static final int LOOKUPS = 100000;
+
+    private static ChargingSchedule randomSchedule(Random random) {
+        BitSet enabled = new BitSet(SLOTS);
+        for (int i = 0; i < SLOTS; i++)
+            enabled.set(i, random.nextBoolean());
+        return new ChargingSchedule(START, GRANULARITY, enabled, SLOTS, false, false);
+    }
+
+    /**
+     * Times within the schedule, in milliseconds since the epoch.
+     */
+    private static long[] randomTimes(Random random) {
+        long startMillis = TimeUtils.toEpochMillis(START);
+        long length = SLOTS * GRANULARITY.toMillis();
+        long[] times = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++)
+            times[i] = startMillis + (long) (random.nextDouble() * length);
+        return times;
+    }
+
+    /**
+     * The lookup before the index calculation in milliseconds: the current time was a
+     * {@code LocalDateTime}, and the index was calculated with {@code Duration} objects.
+     */
+    private static boolean isEnabledAtByTime(ChargingSchedule schedule, long epochMillis) {
+        LocalDateTime time = TimeUtils.ofEpochMillis(epochMillis);
+        return schedule.isEnabled((int) Duration.between(schedule.getStart(), time)
+                .dividedBy(schedule.getGranularity()));
+    }
+
+    private static int countByMillis(ChargingSchedule schedule, long[] times) {
+        int count = 0;
+        for (long time : times) {
+            if (schedule.isEnabledAt(time))
+                count++;
+        }
+        return count;
+    }
+
+    private static int countByTime(ChargingSchedule schedule, long[] times) {
+        int count = 0;
+        for (long time : times) {
+            if (isEnabledAtByTime(schedule, time))
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void lookupsAgree() {
+        Random random = new Random(1);
+        ChargingSchedule schedule = randomSchedule(random);
+        for (long time : randomTimes(random)) {
+            assertEquals(isEnabledAtByTime(schedule, time), schedule.isEnabledAt(time),
+                    () -> "time " + time);
+            assertEquals(schedule.isEnabledAt(time),
+                    schedule.isEnabledAt(TimeUtils.ofEpochMillis(time)));
+        }
+    }
+
+    @Test
+    public void lookupByMillisIsFaster() {
+        Random random = new Random(2);
+        ChargingSchedule schedule = randomSchedule(random);
+        long[] times = randomTimes(random);
+
+        // warm up, then take the best of several runs
+        int expected = countByTime(schedule, times);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(expected, countByMillis(schedule, times));
+            assertEquals(expected, countByTime(schedule, times));
+        }
+        long bestByMillis = Long.MAX_VALUE;
+        long bestByTime = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            assertEquals(expected, countByMillis(schedule, times));
+            bestByMillis = Math.min(bestByMillis, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(expected, countByTime(schedule, times));
+            bestByTime = Math.min(bestByTime, System.nanoTime() - start);
+        }
+
+        assertTrue(bestByMillis < bestByTime, LOOKUPS + " lookups took " + bestByMillis / 1000 +
+                " us by milliseconds and " + bestByTime / 1000 + " us by LocalDateTime");
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks the lookup of values by time in milliseconds, before the epoch, at day boundaries and
+ * on views of a part of a series, and the bounds of these views.
+ */
+public class DoubleTimeSeriesTest {
+
+    private static final double BEFORE = -1.;
+    private static final double AFTER = 99.;
+
+    @Test
+    public void valuesAroundEpoch() {
+        // starts one hour before the epoch, so the first slot has negative times
+        LocalDateTime start = LocalDateTime.of(1969, 12, 31, 23, 0);
+        DoubleTimeSeries series = new DoubleTimeSeries(start, Duration.ofHours(1),
+                new double[] { 1., 2., 3. }, BEFORE, AFTER);
+        long hour = 3600 * TimeUtils.MILLIS_PER_SECOND;
+
+        assertEquals(BEFORE, series.getValueAt(-hour - 1));
+        assertEquals(1., series.getValueAt(-hour));
+        assertEquals(1., series.getValueAt(-1));
+        assertEquals(2., series.getValueAt(0));
+        assertEquals(2., series.getValueAt(hour - 1));
+        assertEquals(3., series.getValueAt(2 * hour - 1));
+        assertEquals(AFTER, series.getValueAt(2 * hour));
+        assertEquals(LocalDateTime.of(1970, 1, 1, 2, 0), series.getEnd());
+    }
+
+    @Test
+    public void valuesAcrossDayBoundary() {
+        LocalDateTime start = LocalDateTime.of(2023, 3, 25, 23, 0);
+        double[] values = new double[8];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i;
+        DoubleTimeSeries series = new DoubleTimeSeries(start, Duration.ofMinutes(15), values,
+                BEFORE, AFTER);
+        long midnight = TimeUtils.toEpochMillis(LocalDateTime.of(2023, 3, 26, 0, 0));
+
+        assertEquals(3., series.getValueAt(midnight - 1));
+        assertEquals(4., series.getValueAt(midnight));
+        assertEquals(AFTER, series.getValueAt(midnight + 3600 * TimeUtils.MILLIS_PER_SECOND));
+
+        // a view begins with its own first slot and shares the values before and after
+        DoubleTimeSeries slice = series.slice(4, 6);
+        assertEquals(BEFORE, slice.getValueAt(midnight - 1));
+        assertEquals(4., slice.getValueAt(midnight));
+        assertEquals(5., slice.getValueAt(midnight + 30 * 60000 - 1));
+        assertEquals(AFTER, slice.getValueAt(midnight + 30 * 60000));
+    }
+
+    @Test
+    public void millisAndTimesAgree() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long startMillis = (long) ((random.nextDouble() - 0.5) * 1e12);
+            Duration granularity = Duration.ofMinutes(1 + random.nextInt(120));
+            double[] values = new double[1 + random.nextInt(50)];
+            for (int k = 0; k < values.length; k++)
+                values[k] = random.nextDouble();
+            DoubleTimeSeries series = new DoubleTimeSeries(TimeUtils.ofEpochMillis(startMillis),
+                    granularity, values, BEFORE, AFTER);
+
+            long span = (values.length + 2) * granularity.toMillis();
+            long time = startMillis - granularity.toMillis() + (long) (random.nextDouble() * span);
+            long index = Math.floorDiv(time - startMillis, granularity.toMillis());
+            double expected = (index < 0) ? BEFORE :
+                    (index >= values.length) ? AFTER : values[(int) index];
+            assertEquals(expected, series.getValueAt(time), "time " + time);
+            assertEquals(expected, series.getValueAt(TimeUtils.ofEpochMillis(time)));
+        }
+    }
+
+    @Test
+    public void viewsStayWithinSeries() {
+        LocalDateTime start = LocalDateTime.of(2023, 1, 1, 0, 0);
+        DoubleTimeSeries series = new DoubleTimeSeries(start, Duration.ofHours(1),
+                new double[] { 0., 1., 2., 3., 4., 5. }, BEFORE, AFTER);
+
+        // a view of a view adds up the offsets
+        DoubleTimeSeries inner = series.slice(1, 5).slice(2, 4);
+        assertArrayEquals(new double[] { 3., 4. }, inner.toArray());
+        assertEquals(start.plusHours(3), inner.getStart());
+        assertEquals(start.plusHours(5), inner.getEnd());
+        assertEquals(4., inner.getAsDouble(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> inner.getAsDouble(2));
+        assertThrows(IndexOutOfBoundsException.class, () -> inner.getAsDouble(-1));
+        assertEquals(0, series.slice(6, 6).size());
+        assertThrows(IndexOutOfBoundsException.class, () -> series.slice(-1, 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> series.slice(2, 7));
+        assertThrows(IndexOutOfBoundsException.class, () -> series.slice(3, 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> series.slice(1, 5).slice(0, 5));
+
+        // windows contain every slot overlapping the interval, clipped to the series
+        DoubleTimeSeries window = series.window(start.plusMinutes(90), Duration.ofMinutes(60));
+        assertArrayEquals(new double[] { 1., 2. }, window.toArray());
+        window = series.window(start.minusHours(2), Duration.ofHours(3));
+        assertArrayEquals(new double[] { 0. }, window.toArray());
+        window = series.window(start.plusHours(4), Duration.ofDays(1));
+        assertArrayEquals(new double[] { 4., 5. }, window.toArray());
+        assertEquals(0, series.window(start.plusHours(7), Duration.ofHours(1)).size());
+        assertEquals(0, series.window(start.minusHours(3), Duration.ofHours(1)).size());
+        // a window of a view is clipped to the view
+        window = series.slice(1, 3).window(start, Duration.ofDays(1));
+        assertArrayEquals(new double[] { 1., 2. }, window.toArray());
+    }
+
+}
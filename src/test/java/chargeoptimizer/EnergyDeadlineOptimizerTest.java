@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the plan against all possible plans on small inputs, and that re-planning keeps the
+ * deadline of the original plan.
+ */
+public class EnergyDeadlineOptimizerTest {
+
+    private static final ZoneId UTC = ZoneId.of("UTC");
+    private static final Duration GRANULARITY = Duration.ofHours(1);
+
+    private static DoubleTimeSeries costs(LocalDateTime start, int hours) {
+        double[] prices = new double[hours];
+        for (int i = 0; i < hours; i++)
+            prices[i] = 10. + (i % 24);
+        return new DoubleTimeSeries(start, GRANULARITY, prices);
+    }
+
+    @Test
+    public void enabledAfterDeadline() {
+        EnergyDeadlineOptimizer optimizer = new EnergyDeadlineOptimizer(22., 11., 4,
+                LocalTime.of(7, 0), UTC);
+        LocalDateTime start = LocalDateTime.of(2023, 3, 1, 20, 0);
+        ChargingSchedule plan = optimizer.optimize(costs(start, 16));
+
+        assertEquals(2 + 5, plan.enabledCount());
+        for (int i = 11; i < 16; i++)
+            assertTrue(plan.isEnabled(i));
+    }
+
+    @Test
+    public void reoptimizeKeepsDeadline() {
+        EnergyDeadlineOptimizer optimizer = new EnergyDeadlineOptimizer(22., 11., 4,
+                LocalTime.of(7, 0), UTC);
+        LocalDateTime start = LocalDateTime.of(2023, 3, 1, 20, 0);
+        ChargingSchedule plan = optimizer.optimize(costs(start, 16));
+
+        // new prices at 03:00, before the deadline: the rest must be charged until 07:00
+        LocalDateTime early = LocalDateTime.of(2023, 3, 2, 3, 0);
+        ChargingSchedule replan = optimizer.reoptimize(costs(early, 30), plan);
+        for (int i = 4; i < 30; i++)
+            assertTrue(replan.isEnabled(i), "disabled after the deadline in slot " + i);
+
+        // new prices at 13:00, after the deadline: charging stays enabled
+        LocalDateTime late = LocalDateTime.of(2023, 3, 2, 13, 0);
+        replan = optimizer.reoptimize(costs(late, 35), plan);
+        assertEquals(35, replan.enabledCount());
+    }
+
+    @Test
+    public void tooFewSwitchesRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new EnergyDeadlineOptimizer(22., 11., 1, LocalTime.of(7, 0), UTC));
+    }
+
+    @Test
+    public void planIsCheapestWithinSwitches() {
+        Random random = new Random(1);
+        LocalDateTime start = LocalDateTime.of(2023, 3, 1, 0, 0);
+        for (int run = 0; run < 300; run++) {
+            int n = 1 + random.nextInt(12);
+            double[] prices = new double[n];
+            for (int i = 0; i < n; i++)
+                prices[i] = (random.nextInt(10) == 0) ? Double.NaN : random.nextInt(20);
+            DoubleTimeSeries costs = new DoubleTimeSeries(start, GRANULARITY, prices);
+            int needed = random.nextInt(n + 1);
+            int maxSwitches = 2 + random.nextInt(6);
+            // 1 kW for one hour per slot
+            EnergyDeadlineOptimizer optimizer = new EnergyDeadlineOptimizer(needed, 1.,
+                    maxSwitches, null, UTC);
+            String message = "run " + run + ", " + needed + " of " + n + " slots, " +
+                    maxSwitches + " switches";
+
+            ChargingSchedule plan = optimizer.optimize(costs);
+
+            double avg = costs.average();
+            if (Double.isNaN(avg)) avg = 0.;
+            int planned = 0;
+            for (int i = 0; i < n; i++) {
+                if (plan.isEnabled(i))
+                    planned |= 1 << i;
+            }
+            assertEquals(needed, Integer.bitCount(planned), message + ": enabled slots");
+            assertTrue(blocks(planned) <= maxSwitches / 2, message + ": too many switches");
+
+            double best = Double.POSITIVE_INFINITY;
+            for (int candidate = 0; candidate < (1 << n); candidate++) {
+                if (Integer.bitCount(candidate) == needed &&
+                        blocks(candidate) <= maxSwitches / 2)
+                    best = Math.min(best, cost(candidate, prices, avg));
+            }
+            assertEquals(best, cost(planned, prices, avg), 1e-9, message + ": cost");
+        }
+    }
+
+    @Test
+    public void singleBlockOverLongTime() {
+        // 100000 slots of one minute with 50000 needed would need a table of 20 Gbit
+        int n = 100000;
+        double[] prices = new double[n];
+        for (int i = 0; i < n; i++)
+            prices[i] = (i >= 30000 && i < 80000) ? 1. : 10.;
+        LocalDateTime start = LocalDateTime.of(2023, 3, 1, 0, 0);
+        DoubleTimeSeries costs = new DoubleTimeSeries(start, Duration.ofMinutes(1), prices);
+        // 50000 minutes at 6 kW
+        EnergyDeadlineOptimizer optimizer = new EnergyDeadlineOptimizer(5000., 6., 2, null,
+                UTC);
+
+        ChargingSchedule plan = optimizer.optimize(costs);
+
+        assertEquals(50000, plan.enabledCount());
+        assertTrue(plan.isEnabled(30000) && plan.isEnabled(79999));
+    }
+
+    private static int blocks(int slots) {
+        // every block begins with a slot whose previous slot is not enabled
+        return Integer.bitCount(slots & ~(slots << 1));
+    }
+
+    private static double cost(int slots, double[] prices, double avg) {
+        double sum = 0.;
+        for (int i = 0; i < prices.length; i++) {
+            if ((slots & (1 << i)) != 0)
+                sum += Double.isNaN(prices[i]) ? avg : prices[i];
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the calculator of average prices for several areas against a local stub of the ENTSO-E
+ * server: the year must be fetched in chunks which the API accepts, with a bounded number of
+ * concurrent requests and spaced starts, and every price must end up in the right slot of the
+ * statistics.
+ */
+public class EntsoeAvgPricesCalculatorTest {
+
+    private static final DateTimeFormatter PERIOD_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMddHHmm");
+    private static final Instant NOW = Instant.parse("2023-06-15T12:00:00Z");
+    private static final List<EICCodes.AreaInfo> AREAS = List.of(
+            new EICCodes.AreaInfo("10YTEST-BERLIN-1", "Europe/Berlin"),
+            new EICCodes.AreaInfo("10YTEST-LONDON-2", "Europe/London"),
+            new EICCodes.AreaInfo("10YTEST-HELSIN-3", "Europe/Helsinki"));
+    // this area publishes quarter hours and, for the same periods, hours
+    private static final int QUARTER_HOUR_AREA = 2;
+    private static final int CONCURRENCY = 4;
+    private static final Duration REQUEST_INTERVAL = Duration.ofMillis(100);
+    // the maximum number of requests in a window of this many intervals is checked
+    private static final int RATE_WINDOW = 5;
+    // the API accepts at most a year per request
+    private static final Duration MAX_REQUEST_RANGE = Duration.ofDays(365);
+
+    /**
+     * One request as seen by the stub server.
+     */
+    private static class Request {
+        final int area;
+        final LocalDateTime start;
+        final LocalDateTime end;
+        final long receivedNanos;
+
+        Request(int area, LocalDateTime start, LocalDateTime end, long receivedNanos) {
+            this.area = area;
+            this.start = start;
+            this.end = end;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // more threads than the calculator may use, so that the server does not limit it
+        serverExecutor = Executors.newFixedThreadPool(4 * CONCURRENCY);
+        server.setExecutor(serverExecutor);
+        server.createContext("/api", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * The price of every quarter hour is derived from its area and UTC time, so that prices in
+     * wrong slots or areas are detected.
+     */
+    private static double expectedPrice(int area, LocalDateTime time) {
+        return 1000 * area + time.getDayOfYear() + time.getHour() / 100. +
+                time.getMinute() / 10000.;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long received = System.nanoTime();
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            Map<String, String> query = new HashMap<>();
+            for (String parameter : exchange.getRequestURI().getQuery().split("&")) {
+                String[] keyValue = parameter.split("=");
+                query.put(keyValue[0], keyValue[1]);
+            }
+            int area = -1;
+            for (int a = 0; a < AREAS.size(); a++) {
+                if (AREAS.get(a).eic.equals(query.get("in_Domain")))
+                    area = a;
+            }
+            LocalDateTime start = LocalDateTime.parse(query.get("periodStart"), PERIOD_FORMAT);
+            LocalDateTime end = LocalDateTime.parse(query.get("periodEnd"), PERIOD_FORMAT);
+            requests.add(new Request(area, start, end, received));
+
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?><Doc>");
+            if (area == QUARTER_HOUR_AREA) {
+                // the hourly prices are wrong, so that they are detected if counted
+                appendPeriod(xml, area, start, end, Duration.ofHours(1), 5000.);
+                appendPeriod(xml, area, start, end, Duration.ofMinutes(15), 0.);
+            } else {
+                appendPeriod(xml, area, start, end, Duration.ofHours(1), 0.);
+            }
+            xml.append("</Doc>");
+
+            // a slow server makes overlapping requests likely
+            Thread.sleep(2 * REQUEST_INTERVAL.toMillis());
+            byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    private static void appendPeriod(StringBuilder xml, int area, LocalDateTime start,
+            LocalDateTime end, Duration resolution, double error) {
+        xml.append("<TimeSeries><curveType>A01</curveType><Period><timeInterval><start>")
+                .append(start).append("Z</start><end>").append(end)
+                .append("Z</end></timeInterval><resolution>").append(resolution)
+                .append("</resolution>");
+        int position = 1;
+        for (LocalDateTime time = start; time.isBefore(end); time = time.plus(resolution)) {
+            xml.append("<Point><position>").append(position++).append("</position>")
+                    .append("<price.amount>").append(expectedPrice(area, time) + error)
+                    .append("</price.amount></Point>");
+        }
+        xml.append("</Period></TimeSeries>");
+    }
+
+    @Test
+    public void yearIsFetchedInChunks() throws Exception {
+        List<DoubleSummaryStatistics[]> statistics = EntsoeAvgPricesCalculator
+                .calculateStatistics(AREAS, "token", "http://127.0.0.1:" +
+                        server.getAddress().getPort() + "/api", NOW, CONCURRENCY,
+                        REQUEST_INTERVAL);
+        assertEquals(AREAS.size(), statistics.size());
+
+        // the chunks of every area cover the year without gaps or overlaps
+        List<Request> sorted = new ArrayList<>(requests);
+        sorted.sort((a, b) -> a.start.compareTo(b.start));
+        for (int area = 0; area < AREAS.size(); area++) {
+            ZonedDateTime start = EntsoeAvgPricesCalculator.rangeStart(NOW,
+                    ZoneId.of(AREAS.get(area).timezone));
+            LocalDateTime time = utc(start);
+            int chunks = 0;
+            for (Request request : sorted) {
+                if (request.area != area)
+                    continue;
+                assertEquals(time, request.start, "area " + area);
+                assertTrue(request.end.isAfter(request.start));
+                Duration range = Duration.between(request.start, request.end);
+                assertTrue(range.compareTo(MAX_REQUEST_RANGE) <= 0, "request of " + range);
+                assertTrue(range.compareTo(Duration.ofDays(31).plusHours(1)) <= 0,
+                        "chunk of " + range);
+                time = request.end;
+                chunks++;
+            }
+            assertEquals(utc(start.plus(EntsoeAvgPricesCalculator.AVGEXTENT)), time,
+                    "area " + area);
+            assertEquals(12, chunks, "area " + area);
+        }
+
+        // concurrency and rate of the requests
+        assertTrue(maxRunning.get() <= CONCURRENCY, maxRunning.get() + " concurrent requests");
+        assertTrue(maxRunning.get() > 1, "requests are not parallel");
+        long[] received = new long[requests.size()];
+        for (int i = 0; i < received.length; i++)
+            received[i] = requests.get(i).receivedNanos;
+        Arrays.sort(received);
+        // the starts are spaced by the client, but the shared HTTP client may send a few of them
+        // together
+        long window = RATE_WINDOW * REQUEST_INTERVAL.toNanos();
+        for (int i = 0, j = 0; i < received.length; i++) {
+            while (j < received.length && received[j] - received[i] < window)
+                j++;
+            assertTrue(j - i <= RATE_WINDOW + 2, (j - i) + " requests within " +
+                    RATE_WINDOW * REQUEST_INTERVAL.toMillis() + " ms");
+        }
+        long span = received[received.length - 1] - received[0];
+        assertTrue(span >= (received.length - 3) * REQUEST_INTERVAL.toNanos(),
+                received.length + " requests within " + span / 1000000 + " ms");
+
+        for (int area = 0; area < AREAS.size(); area++)
+            assertStatistics(area, statistics.get(area));
+    }
+
+    /**
+     * Recalculate the statistics of an area from the prices of the stub server, with the
+     * profile index taken from the local time.
+     */
+    private static void assertStatistics(int area, DoubleSummaryStatistics[] statistics) {
+        ZoneId timezone = ZoneId.of(AREAS.get(area).timezone);
+        ZonedDateTime start = EntsoeAvgPricesCalculator.rangeStart(NOW, timezone);
+        Duration resolution = (area == QUARTER_HOUR_AREA) ? Duration.ofMinutes(15) :
+                Duration.ofHours(1);
+        int hours = EntsoeAvgPricesCalculator.HOURS;
+        long[] counts = new long[EntsoeAvgPricesCalculator.PROFILE_SIZE];
+        double[] sums = new double[EntsoeAvgPricesCalculator.PROFILE_SIZE];
+        for (ZonedDateTime time = start; time.isBefore(start.plus(
+                EntsoeAvgPricesCalculator.AVGEXTENT)); time = time.plus(resolution)) {
+            int index = ((time.getMonthValue() - 1) * EntsoeAvgPrices.WEEKDAYS +
+                    time.getDayOfWeek().getValue() - 1) * hours + time.getHour();
+            counts[index]++;
+            sums[index] += expectedPrice(area, utc(time));
+        }
+
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            String message = "area " + area + ", slot " + i;
+            assertEquals(counts[i], statistics[i].getCount(), message);
+            assertEquals(sums[i], statistics[i].getSum(), 1e-9 * Math.abs(sums[i]), message);
+            total += counts[i];
+        }
+        assertTrue(total >= 365 * 24, "area " + area + ": " + total + " prices");
+    }
+
+    private static LocalDateTime utc(ZonedDateTime time) {
+        return time.withZoneSameInstant(TimeUtils.UTC).toLocalDateTime();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the lookups in a profile file against the month, weekday and slot of the local time,
+ * and the hourly averages for an area which is not in the file.
+ */
+public class EntsoeAvgPricesTest {
+
+    private static final ZoneId TIMEZONE = ZoneId.of("Europe/Berlin");
+    private static final String[] AREAS = { "10YFR-RTE------C", "10Y1001A1001A82H" };
+    private static final int SLOTS_PER_DAY = 96;
+    private static final int PROFILE_SIZE =
+            EntsoeAvgPrices.MONTHS * EntsoeAvgPrices.WEEKDAYS * SLOTS_PER_DAY;
+
+    @TempDir
+    Path directory;
+
+    /** The price of an area at a local time, distinct for every area, month, weekday and slot. */
+    private static float expectedPrice(int area, LocalDateTime localTime) {
+        int slot = (localTime.getHour() * 60 + localTime.getMinute()) / 15;
+        return 1000 * area + 100 * localTime.getMonthValue() +
+                10 * localTime.getDayOfWeek().getValue() + slot / 8f;
+    }
+
+    private Path writeProfile() throws IOException {
+        Path file = directory.resolve("profile.bin");
+        try (OutputStream out = Files.newOutputStream(file);
+                DataOutputStream data = new DataOutputStream(out)) {
+            data.writeInt(EntsoeAvgPrices.PROFILE_MAGIC);
+            data.writeInt(EntsoeAvgPrices.PROFILE_VERSION);
+            data.writeInt(SLOTS_PER_DAY);
+            data.writeInt(AREAS.length);
+            int position = 16 + AREAS.length * (EntsoeAvgPrices.EIC_LENGTH + 4);
+            for (String eic : AREAS) {
+                data.write(Arrays.copyOf(eic.getBytes(StandardCharsets.US_ASCII),
+                        EntsoeAvgPrices.EIC_LENGTH));
+                data.writeInt(position);
+                position += 4 * PROFILE_SIZE;
+            }
+            // 2024 starts on a Monday, so January 2024 contains every weekday of January
+            for (int area = 0; area < AREAS.length; area++) {
+                for (int month = 1; month <= EntsoeAvgPrices.MONTHS; month++) {
+                    for (int weekday = 1; weekday <= EntsoeAvgPrices.WEEKDAYS; weekday++) {
+                        LocalDateTime day = LocalDateTime.of(2024, month, 1, 0, 0);
+                        while (day.getDayOfWeek().getValue() != weekday)
+                            day = day.plusDays(1);
+                        for (int slot = 0; slot < SLOTS_PER_DAY; slot++)
+                            data.writeFloat(expectedPrice(area, day.plusMinutes(15 * slot)));
+                    }
+                }
+            }
+        }
+        return file;
+    }
+
+    private static LocalDateTime utc(ZonedDateTime time) {
+        return time.withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+    }
+
+    @Test
+    public void pricesAreLookedUpInTheProfile() throws IOException {
+        Path file = writeProfile();
+        EntsoeAvgPrices prices = new EntsoeAvgPrices(AREAS[1], TIMEZONE, file);
+
+        // a year in steps of 25 minutes covers every month, weekday and both UTC offsets
+        ZonedDateTime start = ZonedDateTime.of(2024, 1, 1, 0, 5, 0, 0, TIMEZONE);
+        Duration step = Duration.ofMinutes(25);
+        int n = (int) (Duration.ofDays(366).toMillis() / step.toMillis());
+        DoubleTimeSeries costs = prices.getCosts(utc(start), utc(start.plus(step.multipliedBy(n))),
+                step);
+        assertEquals(n, costs.size());
+        for (int i = 0; i < n; i++) {
+            ZonedDateTime time = start.plus(step.multipliedBy(i));
+            double expected = expectedPrice(1, time.toLocalDateTime());
+            assertEquals(expected, costs.getAsDouble(i), time::toString);
+            assertEquals(expected, prices.getCostAt(utc(time)), time::toString);
+        }
+    }
+
+    @Test
+    public void missingAreaUsesHourlyAverages() throws IOException {
+        Path file = writeProfile();
+        String area = "10YAT-APG------L";
+        EntsoeAvgPrices prices = new EntsoeAvgPrices(area, TIMEZONE, file);
+        double[] hourly = EntsoeAvgPrices.areaPrices.get(area);
+
+        ZonedDateTime start = ZonedDateTime.of(2024, 3, 30, 0, 30, 0, 0, TIMEZONE);
+        for (int i = 0; i < 72; i++) {
+            ZonedDateTime time = start.plusHours(i);
+            assertEquals(hourly[time.getHour()], prices.getCostAt(utc(time)), time::toString);
+        }
+    }
+
+}
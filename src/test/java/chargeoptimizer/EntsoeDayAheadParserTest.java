@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the parser of the market documents with the resolutions and curve types sent by the
+ * ENTSO-E server, and the number parser against {@code Double.parseDouble}. A complete
+ * response is compared with the result of a DOM parser.
+ */
+public class EntsoeDayAheadParserTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(2023, 3, 25, 23, 0);
+    // a day-ahead response (document type A44) for the end of daylight saving time
+    private static final String RESPONSE = "entsoe_day_ahead_A44.xml";
+
+    private static String document(String... timeSeries) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<Publication_MarketDocument>" +
+                "<period.timeInterval><start>2023-03-25T23:00Z</start>" +
+                "<end>2023-03-27T22:00Z</end></period.timeInterval>");
+        for (String series : timeSeries)
+            xml.append(series);
+        return xml.append("</Publication_MarketDocument>").toString();
+    }
+
+    private static String timeSeries(String curveType, LocalDateTime start, LocalDateTime end,
+            String resolution, int[] positions, String[] prices) {
+        StringBuilder xml = new StringBuilder("<TimeSeries><mRID>1</mRID>");
+        if (curveType != null)
+            xml.append("<curveType>").append(curveType).append("</curveType>");
+        xml.append("<Period><timeInterval><start>").append(start).append("Z</start>")
+                .append("<end>").append(end).append("Z</end></timeInterval>")
+                .append("<resolution>").append(resolution).append("</resolution>");
+        for (int i = 0; i < positions.length; i++) {
+            xml.append("<Point>\n  <position>").append(positions[i]).append("</position>\n")
+                    .append("  <price.amount>").append(prices[i]).append("</price.amount>\n")
+                    .append("</Point>");
+        }
+        return xml.append("</Period></TimeSeries>").toString();
+    }
+
+    private static List<DoubleTimeSeries> parse(String xml) throws XMLStreamException {
+        List<DoubleTimeSeries> periods = new ArrayList<>();
+        int count = EntsoeDayAhead.loadXML(
+                new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), periods::add);
+        assertEquals(periods.size(), count);
+        return periods;
+    }
+
+    @Test
+    public void hourlyPeriods() throws XMLStreamException {
+        int[] positions = new int[24];
+        String[] prices = new String[24];
+        double[] expected = new double[24];
+        for (int i = 0; i < 24; i++) {
+            positions[i] = i + 1;
+            expected[i] = -5. + 7.25 * i;
+            prices[i] = Double.toString(expected[i]);
+        }
+        LocalDateTime secondDay = START.plusHours(24);
+        List<DoubleTimeSeries> periods = parse(document(
+                timeSeries("A01", START, secondDay, "PT60M", positions, prices),
+                timeSeries("A01", secondDay, secondDay.plusHours(24), "PT60M", positions,
+                        prices)));
+
+        assertEquals(2, periods.size());
+        for (int p = 0; p < 2; p++) {
+            DoubleTimeSeries period = periods.get(p);
+            assertEquals(START.plusHours(24 * p), period.getStart());
+            assertEquals(Duration.ofHours(1), period.getGranularity());
+            assertArrayEquals(expected, period.toArray());
+        }
+    }
+
+    @Test
+    public void quarterHourPeriod() throws XMLStreamException {
+        int[] positions = new int[16];
+        String[] prices = new String[16];
+        double[] expected = new double[16];
+        for (int i = 0; i < 16; i++) {
+            positions[i] = i + 1;
+            prices[i] = (i % 2 == 0) ? (100 + i) + ".1" : "-" + i + ".75";
+            expected[i] = Double.parseDouble(prices[i]);
+        }
+        // the points need not be in order
+        int[] shuffled = { 16, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 };
+        String[] shuffledPrices = new String[16];
+        for (int i = 0; i < 16; i++)
+            shuffledPrices[i] = prices[shuffled[i] - 1];
+        List<DoubleTimeSeries> periods = parse(document(timeSeries(null, START,
+                START.plusHours(4), "PT15M", shuffled, shuffledPrices)));
+
+        assertEquals(1, periods.size());
+        DoubleTimeSeries period = periods.get(0);
+        assertEquals(START, period.getStart());
+        assertEquals(START.plusHours(4), period.getEnd());
+        assertEquals(Duration.ofMinutes(15), period.getGranularity());
+        assertArrayEquals(expected, period.toArray());
+    }
+
+    @Test
+    public void variableBlocksCarryPricesForward() throws XMLStreamException {
+        List<DoubleTimeSeries> periods = parse(document(
+                timeSeries("A03", START, START.plusHours(6), "PT60M",
+                        new int[] { 1, 2, 5 }, new String[] { "10.5", "20", "-3.25" }),
+                // a missing position of a following A01 series is unknown
+                timeSeries("A01", START.plusHours(6), START.plusHours(9), "PT60M",
+                        new int[] { 1, 3 }, new String[] { "7", "8" })));
+
+        assertEquals(2, periods.size());
+        assertArrayEquals(new double[] { 10.5, 20., 20., 20., -3.25, -3.25 },
+                periods.get(0).toArray());
+        assertArrayEquals(new double[] { 7., Double.NaN, 8. }, periods.get(1).toArray());
+        assertEquals(START.plusHours(6), periods.get(1).getStart());
+
+        // in quarter hours, a single point covers the whole period
+        periods = parse(document(timeSeries("A03", START, START.plusHours(1), "PT15M",
+                new int[] { 1 }, new String[] { "42.42" })));
+        assertArrayEquals(new double[] { 42.42, 42.42, 42.42, 42.42 }, periods.get(0).toArray());
+    }
+
+    /**
+     * Generate a decimal number with an optional sign, up to 20 digits before and after the
+     * decimal point, sometimes an exponent and white space around it.
+     */
+    private static String randomNumber(Random random) {
+        StringBuilder number = new StringBuilder();
+        int sign = random.nextInt(4);
+        if (sign == 0)
+            number.append('-');
+        else if (sign == 1)
+            number.append('+');
+        int integerDigits = (random.nextInt(4) == 0) ? random.nextInt(21) : random.nextInt(5);
+        for (int i = 0; i < integerDigits; i++)
+            number.append((char) ('0' + random.nextInt(10)));
+        int fractionDigits = -1;
+        if (integerDigits == 0 || random.nextInt(3) > 0) {
+            number.append('.');
+            fractionDigits = (random.nextInt(4) == 0) ? random.nextInt(21) : random.nextInt(4);
+            if (integerDigits == 0)
+                fractionDigits = Math.max(fractionDigits, 1);
+            for (int i = 0; i < fractionDigits; i++)
+                number.append((char) ('0' + random.nextInt(10)));
+        }
+        if (random.nextInt(10) == 0)
+            number.append('e').append(random.nextInt(300) - 150);
+        String whiteSpace = " \n\t";
+        if (random.nextInt(5) == 0)
+            number.insert(0, whiteSpace.charAt(random.nextInt(3)));
+        if (random.nextInt(5) == 0)
+            number.append(whiteSpace.charAt(random.nextInt(3)));
+        return number.toString();
+    }
+
+    @Test
+    public void parseNumberEqualsParseDouble() {
+        Random random = new Random(3);
+        for (int i = 0; i < 200000; i++) {
+            String number = randomNumber(random);
+            // the number is only a part of the buffer, like in the XML reader
+            char[] chars = ("<a>" + number + "</a>").toCharArray();
+            double expected = Double.parseDouble(number);
+            double actual = EntsoeDayAhead.parseNumber(chars, 3, number.length());
+            assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual),
+                    () -> "\"" + number + "\": " + expected + " != " + actual);
+        }
+    }
+
+    /**
+     * Parse a document with the DOM parser, independently of {@code loadXML}; omitted
+     * positions of a series of variable sized blocks (A03) repeat the previous price.
+     */
+    private static List<DoubleTimeSeries> referenceParse(InputStream in) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().parse(in);
+        List<DoubleTimeSeries> periods = new ArrayList<>();
+        NodeList timeSeries = document.getElementsByTagNameNS("*", "TimeSeries");
+        for (int t = 0; t < timeSeries.getLength(); t++) {
+            Element series = (Element) timeSeries.item(t);
+            boolean carryForward = text(series, "curveType").equals("A03");
+            NodeList seriesPeriods = series.getElementsByTagNameNS("*", "Period");
+            for (int p = 0; p < seriesPeriods.getLength(); p++) {
+                Element period = (Element) seriesPeriods.item(p);
+                LocalDateTime start = utc(text(period, "start"));
+                LocalDateTime end = utc(text(period, "end"));
+                Duration resolution = Duration.parse(text(period, "resolution"));
+                double[] prices = new double[(int) Duration.between(start, end)
+                        .dividedBy(resolution)];
+                Arrays.fill(prices, Double.NaN);
+                NodeList points = period.getElementsByTagNameNS("*", "Point");
+                for (int i = 0; i < points.getLength(); i++) {
+                    Element point = (Element) points.item(i);
+                    prices[Integer.parseInt(text(point, "position")) - 1] =
+                            Double.parseDouble(text(point, "price.amount"));
+                }
+                for (int i = 1; carryForward && i < prices.length; i++) {
+                    if (Double.isNaN(prices[i]))
+                        prices[i] = prices[i - 1];
+                }
+                periods.add(new DoubleTimeSeries(start, resolution, prices));
+            }
+        }
+        return periods;
+    }
+
+    private static String text(Element element, String name) {
+        return element.getElementsByTagNameNS("*", name).item(0).getTextContent().trim();
+    }
+
+    private static LocalDateTime utc(String time) {
+        return OffsetDateTime.parse(time.replace("Z", ":00Z")).withOffsetSameInstant(
+                ZoneOffset.UTC).toLocalDateTime();
+    }
+
+    @Test
+    public void recordedResponse() throws Exception {
+        List<DoubleTimeSeries> expected;
+        try (InputStream in = getClass().getResourceAsStream(RESPONSE)) {
+            expected = referenceParse(in);
+        }
+        List<DoubleTimeSeries> periods = new ArrayList<>();
+        try (InputStream in = getClass().getResourceAsStream(RESPONSE)) {
+            assertEquals(3, EntsoeDayAhead.loadXML(in, periods::add));
+        }
+
+        assertEquals(expected.size(), periods.size());
+        for (int p = 0; p < periods.size(); p++) {
+            assertEquals(expected.get(p).getStart(), periods.get(p).getStart());
+            assertEquals(expected.get(p).getGranularity(), periods.get(p).getGranularity());
+            assertArrayEquals(expected.get(p).toArray(), periods.get(p).toArray());
+        }
+
+        // the second day has 25 hours, and omitted positions repeat the previous price
+        DoubleTimeSeries hours = periods.get(1);
+        assertEquals(LocalDateTime.of(2024, 10, 26, 22, 0), hours.getStart());
+        assertEquals(25, hours.size());
+        assertEquals(73.5, hours.getAsDouble(24));
+        assertEquals(-0.01, hours.getAsDouble(13));
+        DoubleTimeSeries quarterHours = periods.get(2);
+        assertEquals(Duration.ofMinutes(15), quarterHours.getGranularity());
+        assertEquals(100, quarterHours.size());
+        assertEquals(75.55, quarterHours.getAsDouble(20));
+        assertEquals(76.27, quarterHours.getAsDouble(99));
+    }
+
+}
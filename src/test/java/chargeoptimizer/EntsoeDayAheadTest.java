@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Stress test of the price cache and the single-flight fetches: many threads read and request
+ * prices at the same time from a local stub of the ENTSO-E server, which must be asked for
+ * every hour only once.
+ */
+public class EntsoeDayAheadTest {
+
+    private static final ZoneId TIMEZONE = ZoneId.of("Europe/Berlin");
+    private static final DateTimeFormatter PERIOD_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMddHHmm");
+    private static final int THREADS = 32;
+    private static final int OPERATIONS = 1000;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private EntsoeDayAhead dayAhead;
+    // number of times every UTC hour has been delivered by the stub server
+    private final Map<LocalDateTime, AtomicInteger> delivered = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.createContext("/api", this::handle);
+        server.start();
+
+        dayAhead = new EntsoeDayAhead("10Y1001A1001A82H", TIMEZONE, "token");
+        dayAhead.setBaseUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/api");
+    }
+
+    @AfterEach
+    public void stopServer() {
+        dayAhead.stop();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * The price of every hour is derived from its UTC time, so that wrong slots are detected.
+     */
+    private static double expectedPrice(LocalDateTime time) {
+        return time.getDayOfYear() * 100 + time.getHour();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Map<String, String> query = new HashMap<>();
+        for (String parameter : exchange.getRequestURI().getQuery().split("&")) {
+            String[] keyValue = parameter.split("=");
+            query.put(keyValue[0], keyValue[1]);
+        }
+        LocalDateTime start = LocalDateTime.parse(query.get("periodStart"), PERIOD_FORMAT);
+        LocalDateTime end = LocalDateTime.parse(query.get("periodEnd"), PERIOD_FORMAT);
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?><Doc><TimeSeries>" +
+                "<curveType>A01</curveType><Period><timeInterval><start>" + start +
+                "Z</start><end>" + end + "Z</end></timeInterval>" +
+                "<resolution>PT60M</resolution>");
+        int position = 1;
+        for (LocalDateTime time = start; time.isBefore(end); time = time.plusHours(1)) {
+            delivered.computeIfAbsent(time, t -> new AtomicInteger()).incrementAndGet();
+            xml.append("<Point><position>").append(position++).append("</position>")
+                    .append("<price.amount>").append(expectedPrice(time))
+                    .append("</price.amount></Point>");
+        }
+        xml.append("</Period></TimeSeries></Doc>");
+
+        // a slow server makes overlapping requests likely
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Test
+    public void concurrentReadersFetchEveryHourOnce() throws Exception {
+        ZonedDateTime today = TimeUtils.now().atZone(ZoneOffset.UTC)
+                .withZoneSameInstant(TIMEZONE).truncatedTo(ChronoUnit.DAYS);
+        LocalDateTime from = today.minusDays(1).withZoneSameInstant(ZoneOffset.UTC)
+                .toLocalDateTime();
+        LocalDateTime to = today.plusDays(2).withZoneSameInstant(ZoneOffset.UTC)
+                .toLocalDateTime();
+        int hours = (int) Duration.between(from, to).toHours();
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicInteger wrong = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<Future<?>> tasks = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                long seed = t;
+                tasks.add(pool.submit(() -> {
+                    Random random = new Random(seed);
+                    go.await();
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        LocalDateTime time = from.plusHours(random.nextInt(hours));
+                        switch (i % 4) {
+                            case 0:
+                                Double cost = dayAhead.getCostAt(time);
+                                if (cost != null && cost != expectedPrice(time))
+                                    wrong.incrementAndGet();
+                                break;
+                            case 1:
+                                DoubleTimeSeries costs = dayAhead.getCosts(from, to,
+                                        Duration.ofMinutes(15));
+                                for (int k = 0; k < costs.size(); k++) {
+                                    double value = costs.getAsDouble(k);
+                                    if (!Double.isNaN(value) &&
+                                            value != expectedPrice(costs.getTime(k)))
+                                        wrong.incrementAndGet();
+                                }
+                                break;
+                            case 2:
+                                dayAhead.getFetchState(time);
+                                break;
+                            default:
+                                if (dayAhead.requestPrices(time).get(10, TimeUnit.SECONDS) ==
+                                        EntsoeDayAhead.FetchState.FAILED)
+                                    failed.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            go.countDown();
+            for (Future<?> task : tasks)
+                task.get(60, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(0, wrong.get(), "wrong prices");
+        assertEquals(0, failed.get(), "failed requests");
+        for (int h = 0; h < hours; h++) {
+            LocalDateTime time = from.plusHours(h);
+            assertNotNull(dayAhead.getCostAt(time), "missing price at " + time);
+            AtomicInteger count = delivered.get(time);
+            assertEquals(1, (count == null) ? 0 : count.get(),
+                    "number of fetches of " + time);
+        }
+    }
+
+    @Test
+    public void concurrentRequestsShareOneFetch() throws Exception {
+        LocalDateTime time = TimeUtils.now().truncatedTo(ChronoUnit.HOURS);
+
+        List<CompletableFuture<EntsoeDayAhead.FetchState>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            futures.add(dayAhead.requestPrices(time));
+        for (CompletableFuture<EntsoeDayAhead.FetchState> future : futures)
+            assertEquals(EntsoeDayAhead.FetchState.AVAILABLE, future.get(10, TimeUnit.SECONDS));
+
+        assertEquals(1, requests.get(), "number of requests to the server");
+        assertEquals(expectedPrice(time), dayAhead.getCostAt(time).doubleValue(), 0.);
+    }
+
+}
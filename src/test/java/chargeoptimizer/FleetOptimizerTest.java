@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the constraints of the fleet plan, the repair of contested slots and the time needed
+ * for a fleet of 200 vehicles over one day of five-minute slots.
+ */
+public class FleetOptimizerTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(2023, 1, 1, 0, 0);
+    private static final Duration GRANULARITY = Duration.ofMinutes(5);
+    private static final int SLOTS = 288;
+    private static final int VEHICLES = 200;
+    // time budget for planning the whole fleet
+    private static final long MAX_PLANNING_MILLIS = 1000;
+    // the contested fleet: pairs of vehicles, and the slots only usable by the second of a pair
+    private static final int PAIRS = 100;
+    private static final int EARLY_SLOTS = 48;
+    private static final int EARLY_NEEDED = 8;
+    private static final double POWER = 11.;
+
+    @Test
+    public void singleVehicleGetsCheapestSlots() {
+        double[] prices = new double[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            prices[i] = (i >= 100 && i < 112) ? 1. : 10.;
+        DoubleTimeSeries costs = new DoubleTimeSeries(START, GRANULARITY, prices);
+        // 11 kW for one hour
+        List<FleetOptimizer.Vehicle> vehicles = List.of(new FleetOptimizer.Vehicle(START,
+                START.plusDays(1), 11., 11.));
+
+        ChargingSchedule schedule = new FleetOptimizer(22.).optimize(costs, vehicles).get(0);
+
+        assertEquals(12, schedule.enabledCount());
+        for (int i = 100; i < 112; i++)
+            assertTrue(schedule.isEnabled(i));
+    }
+
+    @Test
+    public void congestedFleetRespectsLimits() {
+        Random random = new Random(1);
+        DoubleTimeSeries costs = randomCosts(random);
+        List<FleetOptimizer.Vehicle> vehicles = randomVehicles(random);
+        double sitePowerLimit = 400.;
+
+        List<ChargingSchedule> schedules = new FleetOptimizer(sitePowerLimit).optimize(costs,
+                vehicles);
+
+        assertEquals(vehicles.size(), schedules.size());
+        double[] load = new double[SLOTS];
+        for (int v = 0; v < vehicles.size(); v++) {
+            FleetOptimizer.Vehicle vehicle = vehicles.get(v);
+            ChargingSchedule schedule = schedules.get(v);
+            double energy = 0.;
+            for (int i = 0; i < SLOTS; i++) {
+                if (!schedule.isEnabled(i))
+                    continue;
+                LocalDateTime time = schedule.getTime(i);
+                assertTrue(!time.isBefore(vehicle.arrival) &&
+                        !time.plus(GRANULARITY).isAfter(vehicle.departure),
+                        "vehicle " + v + " charges outside its stay");
+                load[i] += vehicle.maxPower;
+                energy += vehicle.maxPower * GRANULARITY.toMillis() / 3.6e6;
+            }
+            assertTrue(energy < vehicle.energy + vehicle.maxPower / 12.,
+                    "vehicle " + v + " charges too much");
+        }
+        for (int i = 0; i < SLOTS; i++)
+            assertTrue(load[i] <= sitePowerLimit + 1e-6, "site limit exceeded in slot " + i);
+    }
+
+    @Test
+    public void contestedSlotsAreRepaired() {
+        Random random = new Random(3);
+        DoubleTimeSeries costs = contestedCosts(random);
+        List<FleetOptimizer.Vehicle> vehicles = contestedVehicles();
+        double sitePowerLimit = PAIRS * POWER;
+
+        List<ChargingSchedule> schedules = new FleetOptimizer(sitePowerLimit).optimize(costs,
+                vehicles);
+
+        // the plan is feasible, but only if the first vehicles of the pairs, which are planned
+        // first, are moved out of the early slots
+        double[] load = new double[SLOTS];
+        for (int v = 0; v < vehicles.size(); v++) {
+            FleetOptimizer.Vehicle vehicle = vehicles.get(v);
+            ChargingSchedule schedule = schedules.get(v);
+            double energy = 0.;
+            for (int i = 0; i < SLOTS; i++) {
+                if (!schedule.isEnabled(i))
+                    continue;
+                LocalDateTime time = schedule.getTime(i);
+                assertTrue(!time.isBefore(vehicle.arrival) &&
+                        !time.plus(GRANULARITY).isAfter(vehicle.departure),
+                        "vehicle " + v + " charges outside its stay");
+                load[i] += vehicle.maxPower;
+                energy += vehicle.maxPower * GRANULARITY.toMillis() / 3.6e6;
+            }
+            assertEquals(vehicle.energy, energy, 1e-6, "energy of vehicle " + v);
+        }
+        for (int i = 0; i < SLOTS; i++)
+            assertTrue(load[i] <= sitePowerLimit + 1e-6, "site limit exceeded in slot " + i);
+    }
+
+    @Test
+    public void planningFleetIsFast() {
+        Random random = new Random(2);
+        DoubleTimeSeries costs = randomCosts(random);
+        List<FleetOptimizer.Vehicle> vehicles = randomVehicles(random);
+        assertPlanningIsFast(costs, vehicles, 3000.);
+        assertPlanningIsFast(costs, vehicles, 400.);
+
+        // every second vehicle needs repairs
+        assertPlanningIsFast(contestedCosts(random), contestedVehicles(), PAIRS * POWER);
+    }
+
+    private static void assertPlanningIsFast(DoubleTimeSeries costs,
+            List<FleetOptimizer.Vehicle> vehicles, double sitePowerLimit) {
+        FleetOptimizer optimizer = new FleetOptimizer(sitePowerLimit);
+        // warm up, then take the best of several runs
+        for (int i = 0; i < 3; i++)
+            optimizer.optimize(costs, vehicles);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            optimizer.optimize(costs, vehicles);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        long millis = best / 1000000;
+        assertTrue(millis < MAX_PLANNING_MILLIS, vehicles.size() + " vehicles, site limit " +
+                sitePowerLimit + " kW: planning took " + millis + " ms");
+    }
+
+    private static DoubleTimeSeries randomCosts(Random random) {
+        double[] prices = new double[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            prices[i] = 20. + 10. * Math.sin(i * 2 * Math.PI / SLOTS) + random.nextDouble();
+        return new DoubleTimeSeries(START, GRANULARITY, prices);
+    }
+
+    private static List<FleetOptimizer.Vehicle> randomVehicles(Random random) {
+        List<FleetOptimizer.Vehicle> vehicles = new ArrayList<>();
+        for (int v = 0; v < VEHICLES; v++) {
+            LocalDateTime arrival = START.plus(GRANULARITY.multipliedBy(random.nextInt(144)));
+            LocalDateTime departure = arrival.plus(
+                    GRANULARITY.multipliedBy(24 + random.nextInt(120)));
+            double power = (random.nextInt(2) == 0) ? 11. : 22.;
+            vehicles.add(new FleetOptimizer.Vehicle(arrival, departure,
+                    5. + 40. * random.nextDouble(), power));
+        }
+        return vehicles;
+    }
+
+    /**
+     * The early slots are the cheapest, and the last ones the most expensive.
+     */
+    private static DoubleTimeSeries contestedCosts(Random random) {
+        double[] prices = new double[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            prices[i] = ((i < EARLY_SLOTS) ? 1. : 10. + i) + random.nextDouble() / 2.;
+        return new DoubleTimeSeries(START, GRANULARITY, prices);
+    }
+
+    /**
+     * Pairs of a vehicle that stays all day and needs all but {@code EARLY_NEEDED} slots, and a
+     * vehicle that only stays for the early slots; the first has less slack and takes all
+     * early slots.
+     */
+    private static List<FleetOptimizer.Vehicle> contestedVehicles() {
+        double energyPerSlot = POWER * GRANULARITY.toMillis() / 3.6e6;
+        List<FleetOptimizer.Vehicle> vehicles = new ArrayList<>();
+        for (int p = 0; p < PAIRS; p++) {
+            vehicles.add(new FleetOptimizer.Vehicle(START, START.plusDays(1),
+                    (SLOTS - EARLY_NEEDED) * energyPerSlot, POWER));
+            vehicles.add(new FleetOptimizer.Vehicle(START,
+                    START.plus(GRANULARITY.multipliedBy(EARLY_SLOTS)),
+                    EARLY_NEEDED * energyPerSlot, POWER));
+        }
+        return vehicles;
+    }
+
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the view {@code statistics_update} and the {@code StatisticsAggregator} with the query
+ * of the view from before the chargelog could contain runs of samples, on random logs with gaps
+ * and unknown prices in an in-memory H2 database.
+ */
+public class StatisticsBaselineTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    private static final LocalDateTime START = LocalDateTime.of(2023, 3, 1, 0, 0);
+    private static final int SEEDS = 5;
+    private static final int SAMPLES = 1000;
+
+    private String baselineQuery;
+    private String url;
+    private Connection conn;
+    // the session of the temporary table for the baseline query
+    private Connection baselineConn;
+
+    /**
+     * One logged state.
+     */
+    private static class Sample {
+        final LocalDateTime time;
+        final Charger.State state;
+        final boolean chargingAllowed;
+        final double price;
+
+        Sample(LocalDateTime time, Charger.State state, boolean chargingAllowed, double price) {
+            this.time = time;
+            this.state = state;
+            this.chargingAllowed = chargingAllowed;
+            this.price = price;
+        }
+    }
+
+    @BeforeEach
+    public void openDatabase() throws IOException, SQLException {
+        try (InputStream in = getClass().getResourceAsStream("statistics_update_baseline.sql")) {
+            baselineQuery = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        url = "jdbc:h2:mem:baseline" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        Flyway.configure().dataSource(url, "", "").load().migrate();
+        conn = DriverManager.getConnection(url, "", "");
+        baselineConn = DriverManager.getConnection(url, "", "");
+        // a temporary table, because H2 2.1 fails an assertion when a table is created after
+        // the migrations
+        try (Statement stmt = baselineConn.createStatement()) {
+            stmt.execute("CREATE LOCAL TEMPORARY TABLE baseline_chargelog (" +
+                    "  logtime TIMESTAMP NOT NULL PRIMARY KEY, carconnected BOOLEAN NOT NULL, " +
+                    "  charging BOOLEAN NOT NULL, chargingAllowed BOOLEAN NOT NULL, " +
+                    "  price DOUBLE NOT NULL)");
+        }
+    }
+
+    @AfterEach
+    public void closeDatabase() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+        baselineConn.close();
+        conn.close();
+    }
+
+    /**
+     * Generate a log with long runs of equal states, a few gaps of more than ten minutes and
+     * some unknown prices.
+     */
+    private static List<Sample> randomLog(Random random) {
+        List<Sample> log = new ArrayList<>();
+        LocalDateTime time = START;
+        Charger.State state = Charger.State.NO_CAR;
+        boolean chargingAllowed = false;
+        double price = 20.;
+        int interval = 60;
+        for (int i = 0; i < SAMPLES; i++) {
+            int event = random.nextInt(100);
+            if (event < 3) {
+                state = (state == Charger.State.NO_CAR) ? Charger.State.CAR_CONNECTED :
+                        Charger.State.NO_CAR;
+            } else if (event < 8 && state != Charger.State.NO_CAR) {
+                chargingAllowed = !chargingAllowed;
+                state = chargingAllowed ? Charger.State.CHARGING : Charger.State.CAR_CONNECTED;
+            } else if (event < 11) {
+                price = Math.round(100. * random.nextDouble()) / 4.;
+            } else if (event < 12) {
+                price = Double.NaN;
+            } else if (event < 13) {
+                interval = (random.nextInt(2) == 0) ? 60 : 30;
+            }
+            log.add(new Sample(time, state, chargingAllowed, price));
+
+            int gap = random.nextInt(100);
+            if (gap < 2)
+                time = time.plusSeconds(601 + random.nextInt(3000));
+            else if (gap < 4)
+                time = time.plusSeconds(1 + random.nextInt(600));
+            else
+                time = time.plusSeconds(interval);
+        }
+        return log;
+    }
+
+    private void insertBaseline(List<Sample> log) throws SQLException {
+        try (PreparedStatement stmt = baselineConn.prepareStatement(
+                "INSERT INTO baseline_chargelog VALUES (?, ?, ?, ?, ?)")) {
+            for (Sample sample : log) {
+                stmt.setTimestamp(1, Timestamp.valueOf(sample.time));
+                stmt.setBoolean(2, sample.state.isConnected());
+                stmt.setBoolean(3, sample.state == Charger.State.CHARGING);
+                stmt.setBoolean(4, sample.chargingAllowed);
+                stmt.setDouble(5, sample.price);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    private void logAll(List<Sample> log, StatisticsDatabase.LogMode mode) {
+        StatisticsDatabase database = new StatisticsDatabase(url, "", "");
+        database.setLogMode(mode);
+        for (Sample sample : log)
+            database.logState(sample.time, sample.state, sample.chargingAllowed, sample.price);
+        database.close();
+        assertEquals(log.size(), database.getWrittenEntries());
+    }
+
+    /**
+     * Make {@code since} the start of the last period in the table {@code statistics}, or empty
+     * the table if it is null.
+     */
+    private void setLastPeriod(LocalDateTime since) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM statistics");
+        }
+        if (since == null)
+            return;
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO statistics VALUES (?, ?, 0, 0, 0, 0)")) {
+            stmt.setTimestamp(1, Timestamp.valueOf(since));
+            stmt.setTimestamp(2, Timestamp.valueOf(since));
+            stmt.execute();
+        }
+    }
+
+    private static List<Object[]> rows(Connection conn, String sql) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                Object[] row = new Object[columns];
+                for (int c = 0; c < columns; c++) {
+                    Object value = rs.getObject(c + 1);
+                    // some columns are calculated as decimal numbers
+                    row[c] = (value instanceof Number) ? ((Number) value).doubleValue() : value;
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private static void assertRowsEqual(List<Object[]> expected, List<Object[]> actual,
+            String message) {
+        assertEquals(expected.size(), actual.size(), message + ": number of periods");
+        for (int r = 0; r < expected.size(); r++) {
+            Object[] e = expected.get(r);
+            Object[] a = actual.get(r);
+            for (int c = 0; c < e.length; c++) {
+                if (e[c] instanceof Double) {
+                    double x = (Double) e[c];
+                    assertEquals(x, (Double) a[c], 1e-9 * Math.max(1., Math.abs(x)),
+                            message + ": row " + r + ", column " + c);
+                } else {
+                    assertEquals(e[c], a[c], message + ": row " + r + ", column " + c);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void viewMatchesBaselineInBothModes() throws SQLException {
+        for (StatisticsDatabase.LogMode mode : StatisticsDatabase.LogMode.values()) {
+            for (int seed = 0; seed < SEEDS; seed++) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("DELETE FROM chargelog");
+                }
+                try (Statement stmt = baselineConn.createStatement()) {
+                    stmt.execute("DELETE FROM baseline_chargelog");
+                }
+                Random random = new Random(seed);
+                List<Sample> log = randomLog(random);
+                logAll(log, mode);
+                insertBaseline(log);
+
+                long rowCount = ((Double) rows(conn, "SELECT COUNT(*) FROM chargelog")
+                        .get(0)[0]).longValue();
+                if (mode == StatisticsDatabase.LogMode.CHANGES)
+                    assertTrue(rowCount < log.size() / 5, "runs are combined into one row");
+                else
+                    assertEquals(log.size(), rowCount);
+
+                // without statistics, at the start of a sample, and between two samples of a
+                // run, so that the view must cut the run
+                List<LocalDateTime> cuts = new ArrayList<>();
+                cuts.add(null);
+                for (int k = 0; k < 5; k++) {
+                    LocalDateTime time = log.get(random.nextInt(log.size())).time;
+                    cuts.add(time);
+                    cuts.add(time.plusSeconds(1 + random.nextInt(29)));
+                }
+                for (LocalDateTime since : cuts) {
+                    setLastPeriod(since);
+                    String message = mode + ", seed " + seed + ", since " + since;
+                    List<Object[]> expected = rows(baselineConn,
+                            baselineQuery + " ORDER BY period_start");
+                    assertTrue(since != null || !expected.isEmpty(), message + ": no periods");
+                    assertRowsEqual(expected,
+                            rows(conn, "SELECT * FROM statistics_update ORDER BY period_start"),
+                            message);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void aggregatorMatchesBaseline() throws SQLException {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            try (Statement stmt = baselineConn.createStatement()) {
+                stmt.execute("DELETE FROM baseline_chargelog");
+            }
+            List<Sample> log = randomLog(new Random(seed));
+            insertBaseline(log);
+
+            StatisticsAggregator aggregator = new StatisticsAggregator();
+            List<Object[]> actual = new ArrayList<>();
+            for (Sample sample : log) {
+                StatisticsAggregator.Period period = aggregator.add(sample.time,
+                        sample.state.isConnected(), sample.state == Charger.State.CHARGING,
+                        sample.price);
+                if (period != null)
+                    actual.add(row(period));
+            }
+            StatisticsAggregator.Period current = aggregator.current();
+            if (current != null)
+                actual.add(row(current));
+
+            List<Object[]> expected = rows(baselineConn, baselineQuery + " ORDER BY period_start");
+            assertTrue(expected.size() > 1, "seed " + seed + ": too few periods");
+            assertRowsEqual(expected, actual, "seed " + seed);
+        }
+    }
+
+    private static Object[] row(StatisticsAggregator.Period period) {
+        return new Object[] { Timestamp.valueOf(period.periodStart),
+                Timestamp.valueOf(period.periodEnd), period.periodHours, period.chargeHours,
+                period.avgPrice, period.avgPriceUnopt };
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the write-behind log of the statistics database against an in-memory H2 database:
+ * batching, the behaviour with a full queue, the counters and the statistics table.
+ */
+public class StatisticsDatabaseTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    private static final LocalDateTime START = LocalDateTime.of(2023, 1, 1, 0, 0);
+    // the capacity of the log queue
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private String url;
+    private Connection conn;
+    private StatisticsDatabase database;
+
+    @BeforeEach
+    public void openDatabase() throws SQLException {
+        url = "jdbc:h2:mem:statistics" + DATABASES.incrementAndGet() +
+                ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=60000";
+        database = new StatisticsDatabase(url, "", "");
+        conn = DriverManager.getConnection(url, "", "");
+    }
+
+    @AfterEach
+    public void closeDatabase() throws SQLException {
+        database.close();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+        conn.close();
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static void waitFor(String what, BooleanSupplier condition)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timeout waiting for " + what);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void entriesAreWrittenInBatches() throws Exception {
+        database.setFlushInterval(Duration.ofHours(1));
+        database.setFlushSize(10);
+
+        for (int i = 0; i < 25; i++) {
+            database.logState(START.plusMinutes(i), Charger.State.CHARGING, true, 10.);
+            if (i == 4) {
+                // an incomplete batch waits for the flush interval
+                Thread.sleep(200);
+                assertEquals(0, count("SELECT COUNT(*) FROM chargelog"));
+            }
+        }
+        waitFor("two batches", () -> database.getWrittenEntries() == 20);
+        assertEquals(20, count("SELECT COUNT(*) FROM chargelog"));
+
+        // close writes the rest of the queue
+        database.close();
+        assertEquals(25, database.getWrittenEntries());
+        assertEquals(0, database.getDroppedEntries());
+        assertEquals(25, count("SELECT COUNT(*) FROM chargelog"));
+
+        database.logState(START.plusMinutes(25), Charger.State.CHARGING, true, 10.);
+        assertEquals(1, database.getDroppedEntries());
+    }
+
+    @Test
+    public void settingsApplyToFirstEntries() throws Exception {
+        // the settings are made after the constructor, like in Main
+        database.setFlushInterval(Duration.ofMillis(50));
+        database.setFlushSize(1000);
+        database.setLogMode(StatisticsDatabase.LogMode.CHANGES);
+
+        for (int i = 0; i < 10; i++)
+            database.logState(START.plusMinutes(i), Charger.State.CAR_CONNECTED, false, 10.);
+        // the run stays open, but the flush interval must not be the default of five minutes
+        database.logState(START.plusMinutes(10), Charger.State.CHARGING, true, 10.);
+        waitFor("first run", () -> database.getWrittenEntries() == 10);
+        assertEquals(1, count("SELECT COUNT(*) FROM chargelog"));
+        assertEquals(10, count("SELECT samples FROM chargelog"));
+    }
+
+    @Test
+    public void fullQueueDropsEntries() throws Exception {
+        database.setEnqueueTimeout(Duration.ofMillis(1));
+        database.setFlushSize(1);
+        int extra = 50;
+
+        // block the writer: it must wait for the lock on the row of its first entry
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("INSERT INTO chargelog (logtime, carconnected, charging, " +
+                    "chargingallowed, price) VALUES (TIMESTAMP '2023-01-01 00:00:00', " +
+                    "TRUE, TRUE, TRUE, 10.)");
+        }
+        database.logState(START, Charger.State.CHARGING, true, 10.);
+        waitFor("first entry", () -> database.getQueuedEntries() == 0);
+        for (int i = 1; i <= QUEUE_CAPACITY + extra; i++)
+            database.logState(START.plusMinutes(i), Charger.State.CHARGING, true, 10.);
+        assertEquals(QUEUE_CAPACITY, database.getQueuedEntries());
+        assertEquals(extra, database.getDroppedEntries());
+        database.setFlushSize(100);
+        conn.rollback();
+        conn.setAutoCommit(true);
+
+        database.close();
+        assertEquals(QUEUE_CAPACITY + 1, database.getWrittenEntries());
+        assertEquals(extra, database.getDroppedEntries());
+        assertEquals(0, database.getQueuedEntries());
+        assertEquals(QUEUE_CAPACITY + 1, count("SELECT COUNT(*) FROM chargelog"));
+    }
+
+    @Test
+    public void failedBatchIsLeftOutOfStatistics() throws Exception {
+        database.setFlushInterval(Duration.ofHours(1));
+        database.setFlushSize(5);
+
+        LocalDateTime time = START;
+        for (int i = 0; i < 60; i++) {
+            Charger.State state = (i < 40) ? Charger.State.CHARGING : Charger.State.CAR_CONNECTED;
+            database.logState(time, state, true, 10. + i);
+            time = time.plusMinutes(1);
+            if (i == 22) {
+                // the fifth batch contains an existing logtime and cannot be written
+                waitFor("four batches", () -> database.getWrittenEntries() == 20);
+                database.logState(START, state, true, 1000.);
+            }
+        }
+        database.close();
+
+        assertEquals(56, database.getWrittenEntries());
+        assertEquals(5, database.getDroppedEntries());
+        assertEquals(56, count("SELECT COUNT(*) FROM chargelog"));
+        // the table must contain what the view calculates from the written rows alone
+        List<String> statistics = rows("SELECT * FROM statistics ORDER BY period_start");
+        assertEquals(1, statistics.size());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM statistics");
+        }
+        assertEquals(statistics, rows("SELECT * FROM statistics_update ORDER BY period_start"));
+    }
+
+    private List<String> rows(String sql) throws SQLException {
+        List<String> rows = new ArrayList<>();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                StringBuilder row = new StringBuilder();
+                for (int c = 1; c <= rs.getMetaData().getColumnCount(); c++) {
+                    Object value = rs.getObject(c);
+                    // the view calculates some columns as decimal numbers
+                    if (value instanceof Number)
+                        value = String.format("%.9g", ((Number) value).doubleValue());
+                    row.append(value).append(' ');
+                }
+                rows.add(row.toString());
+            }
+        }
+        return rows;
+    }
+
+}
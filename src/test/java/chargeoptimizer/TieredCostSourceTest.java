@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the latency budget bounds a whole call and that tiers which answer from memory
+ * are called directly.
+ */
+public class TieredCostSourceTest {
+
+    private static final LocalDateTime TIME = LocalDateTime.of(2024, 1, 1, 12, 0);
+    private static final long BUDGET_MILLIS = 200;
+
+    /** A tier which takes a long time and knows nothing. */
+    private static class SlowSource implements CostSource {
+        @Override
+        public Double getCostAt(LocalDateTime time) {
+            try {
+                Thread.sleep(10 * BUDGET_MILLIS);
+            } catch (InterruptedException ex) { }
+            return null;
+        }
+    }
+
+    /** A tier which answers from memory and remembers the thread that asked. */
+    private static class MemorySource implements CostSource {
+        volatile Thread caller;
+
+        @Override
+        public Double getCostAt(LocalDateTime time) {
+            caller = Thread.currentThread();
+            return 42.;
+        }
+
+        @Override
+        public boolean isNonBlocking() {
+            return true;
+        }
+    }
+
+    @Test
+    public void budgetIsSharedByAllTiers() {
+        MemorySource memory = new MemorySource();
+        TieredCostSource source = new TieredCostSource(Arrays.asList(new SlowSource(),
+                new SlowSource(), new SlowSource(), memory), Duration.ofMillis(BUDGET_MILLIS));
+        try {
+            long start = System.nanoTime();
+            assertEquals(42., source.getCostAt(TIME));
+            long millis = (System.nanoTime() - start) / 1000000;
+            assertTrue(millis < 2 * BUDGET_MILLIS, "the call took " + millis + " ms");
+            assertSame(Thread.currentThread(), memory.caller);
+        } finally {
+            source.stop();
+        }
+    }
+
+    @Test
+    public void onlyMemoryTiersAreQueriedAfterStop() {
+        MemorySource memory = new MemorySource();
+        TieredCostSource source = new TieredCostSource(Arrays.asList(new SlowSource(), memory),
+                Duration.ofMillis(BUDGET_MILLIS));
+        source.stop();
+        assertEquals(42., source.getCostAt(TIME));
+
+        TieredCostSource slow = new TieredCostSource(Arrays.asList(new SlowSource()),
+                Duration.ofMillis(BUDGET_MILLIS));
+        slow.stop();
+        long start = System.nanoTime();
+        assertNull(slow.getCostAt(TIME));
+        assertTrue(System.nanoTime() - start < BUDGET_MILLIS * 1000000);
+    }
+
+}
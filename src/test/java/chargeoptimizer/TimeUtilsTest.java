@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2020 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package chargeoptimizer;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the index and rounding calculations in milliseconds since the epoch, including times
+ * before the epoch, slots which end exactly at a day boundary and granularities that do not
+ * divide a day.
+ */
+public class TimeUtilsTest {
+
+    private static final long MINUTE = 60 * TimeUtils.MILLIS_PER_SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = TimeUtils.MILLIS_PER_DAY;
+    private static final long[] GRANULARITIES = { 1, TimeUtils.MILLIS_PER_SECOND, 7 * MINUTE,
+            15 * MINUTE, HOUR, DAY };
+
+    @Test
+    public void epochMillisBeforeAndAfterEpoch() {
+        assertEquals(LocalDateTime.of(1970, 1, 1, 0, 0), TimeUtils.ofEpochMillis(0));
+        assertEquals(LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999000000),
+                TimeUtils.ofEpochMillis(-1));
+        assertEquals(-DAY, TimeUtils.toEpochMillis(LocalDateTime.of(1969, 12, 31, 0, 0)));
+        // sub-millisecond parts are truncated towards the past, also before the epoch
+        assertEquals(-1, TimeUtils.toEpochMillis(
+                LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999999999)));
+
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            long millis = randomMillis(random);
+            assertEquals(millis, TimeUtils.toEpochMillis(TimeUtils.ofEpochMillis(millis)));
+        }
+    }
+
+    @Test
+    public void indicesAroundStart() {
+        for (long start : new long[] { 0, -1, -DAY, -DAY - 1, DAY - 1, 1679792400000L }) {
+            for (long granularity : GRANULARITIES) {
+                String message = "start " + start + ", granularity " + granularity;
+                assertEquals(0, TimeUtils.floorIndex(start, granularity, start), message);
+                assertEquals(0, TimeUtils.floorIndex(start, granularity, start + granularity - 1),
+                        message);
+                assertEquals(1, TimeUtils.floorIndex(start, granularity, start + granularity),
+                        message);
+                assertEquals(-1, TimeUtils.floorIndex(start, granularity, start - 1), message);
+                assertEquals(-1, TimeUtils.floorIndex(start, granularity, start - granularity),
+                        message);
+
+                assertEquals(0, TimeUtils.ceilIndex(start, granularity, start), message);
+                assertEquals(1, TimeUtils.ceilIndex(start, granularity, start + 1), message);
+                assertEquals(1, TimeUtils.ceilIndex(start, granularity, start + granularity),
+                        message);
+                if (granularity > 1)
+                    assertEquals(0, TimeUtils.ceilIndex(start, granularity, start - 1), message);
+                assertEquals(-1, TimeUtils.ceilIndex(start, granularity, start - granularity),
+                        message);
+            }
+        }
+    }
+
+    @Test
+    public void indicesOfRandomTimes() {
+        Random random = new Random(2);
+        for (int i = 0; i < 100000; i++) {
+            long start = randomMillis(random);
+            long granularity = GRANULARITIES[random.nextInt(GRANULARITIES.length)];
+            long time = start + (long) ((random.nextDouble() - 0.5) * 1000 * granularity);
+            String message = "start " + start + ", granularity " + granularity + ", time " + time;
+
+            long floor = TimeUtils.floorIndex(start, granularity, time);
+            assertTrue(start + floor * granularity <= time, message);
+            assertTrue(time < start + (floor + 1) * granularity, message);
+
+            long ceil = TimeUtils.ceilIndex(start, granularity, time);
+            assertTrue(time <= start + ceil * granularity, message);
+            assertTrue(start + (ceil - 1) * granularity < time, message);
+            assertEquals((time - start) % granularity == 0 ? floor : floor + 1, ceil, message);
+        }
+    }
+
+    @Test
+    public void roundingStartsAtEveryDay() {
+        Duration hour = Duration.ofHours(1);
+        Duration sevenMinutes = Duration.ofMinutes(7);
+
+        // day boundaries are kept, the last slot of a day ends at the boundary
+        LocalDateTime midnight = LocalDateTime.of(2023, 3, 26, 0, 0);
+        assertEquals(midnight, TimeUtils.roundTimeTo(midnight, hour));
+        assertEquals(midnight, TimeUtils.roundTimeTo(midnight, sevenMinutes));
+        assertEquals(LocalDateTime.of(2023, 3, 25, 23, 0),
+                TimeUtils.roundTimeTo(midnight.minusNanos(1000000), hour));
+        // 7 minutes do not divide a day: the slots start again at midnight
+        assertEquals(LocalDateTime.of(2023, 3, 25, 23, 55),
+                TimeUtils.roundTimeTo(midnight.minusNanos(1000000), sevenMinutes));
+        assertEquals(midnight, TimeUtils.roundTimeTo(midnight.plusMinutes(6), sevenMinutes));
+        assertEquals(midnight.plusMinutes(7),
+                TimeUtils.roundTimeTo(midnight.plusMinutes(7), sevenMinutes));
+
+        // the same before the epoch
+        assertEquals(LocalDateTime.of(1969, 12, 31, 23, 0),
+                TimeUtils.roundTimeTo(LocalDateTime.of(1969, 12, 31, 23, 30), hour));
+        assertEquals(-DAY + 23 * HOUR + 55 * MINUTE, TimeUtils.roundTimeTo(-1, 7 * MINUTE));
+        assertEquals(-DAY, TimeUtils.roundTimeTo(-DAY, 7 * MINUTE));
+        assertEquals(0, TimeUtils.roundTimeTo(0, 7 * MINUTE));
+
+        // all times are UTC, so the local switches to and from summer time do not matter
+        assertEquals(LocalDateTime.of(2023, 3, 26, 2, 0),
+                TimeUtils.roundTimeTo(LocalDateTime.of(2023, 3, 26, 2, 30), hour));
+        assertEquals(LocalDateTime.of(2023, 10, 29, 2, 30), TimeUtils.roundTimeTo(
+                LocalDateTime.of(2023, 10, 29, 2, 44), Duration.ofMinutes(15)));
+    }
+
+    @Test
+    public void roundingOfRandomTimes() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            long time = randomMillis(random);
+            long granularity = GRANULARITIES[random.nextInt(GRANULARITIES.length)];
+            String message = "time " + time + ", granularity " + granularity;
+
+            long rounded = TimeUtils.roundTimeTo(time, granularity);
+            long startOfDay = Math.floorDiv(time, DAY) * DAY;
+            assertTrue(rounded <= time && time - rounded < granularity, message);
+            assertTrue(rounded >= startOfDay, message);
+            assertEquals(0, (rounded - startOfDay) % granularity, message);
+            assertEquals(rounded, TimeUtils.toEpochMillis(TimeUtils.roundTimeTo(
+                    TimeUtils.ofEpochMillis(time), Duration.ofMillis(granularity))), message);
+        }
+    }
+
+    /**
+     * A time within about 30 years before or after the epoch.
+     */
+    private static long randomMillis(Random random) {
+        return (long) ((random.nextDouble() - 0.5) * 60 * 365 * DAY);
+    }
+
+}
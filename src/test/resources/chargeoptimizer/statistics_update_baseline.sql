@@ -0,0 +1,73 @@
+/*  The view statistics_update as of before the chargelog could contain runs of samples (see
+    V6__Chargelog_runs.sql), as a query on the table baseline_chargelog with one row per sample.
+    Tests compare the view and the statistics with it. The names of the subqueries differ from
+    those of the view, because H2 cannot use both in one session otherwise. */
+WITH
+
+/*  select all rows as new as or newer than the last statistics entry and add columns with the
+    previous connection state, the previous time and the next time; exclude entries with price NaN */
+sb_chargelog_laglead AS (
+    SELECT
+        logtime, carconnected, charging, chargingallowed, price,
+        LAG(carconnected) OVER (ORDER BY logtime) AS carconnected_prev,
+        LAG(logtime) OVER (ORDER BY logtime) AS logtime_prev,
+        LEAD(logtime) OVER (ORDER BY logtime) AS logtime_next
+    FROM baseline_chargelog
+    WHERE COALESCE(logtime >= (SELECT MAX(period_start) AS period_start FROM statistics), TRUE)
+        AND price <> SQRT(-1)
+),
+
+/*  number periods; a new period begins when the connection state changes or when more than ten
+    minutes have elapsed since the last log entry; also calculate the time length of a log entry; if
+    that is longer than 600 seconds, only count 60 seconds */
+sb_chargelog_periods AS (
+    SELECT
+        logtime, carconnected, charging, chargingallowed, price,
+        SUM(CASE
+                WHEN carconnected <> carconnected_prev
+                OR DATEDIFF(SECOND, logtime_prev, logtime) > 600
+                THEN 1 ELSE 0 END)
+            OVER (ORDER BY logtime RANGE UNBOUNDED PRECEDING) AS period,
+        CASE WHEN DATEDIFF(MILLISECOND, logtime, logtime_next) > 600000 THEN 60000
+            ELSE DATEDIFF(MILLISECOND, logtime, logtime_next) END AS millis
+    FROM sb_chargelog_laglead
+), 
+
+-- calculate running time sum and overall charging time over periods
+sb_chargelog_sums AS (
+    SELECT
+        period, logtime, charging, price, millis,
+        SUM(millis) OVER period_prev AS current_period_millis,
+        SUM(CASE WHEN charging THEN millis ELSE 0 END) OVER period_all AS charge_millis
+    FROM sb_chargelog_periods
+    WHERE carconnected
+    WINDOW period_all AS (PARTITION BY period),
+           period_prev AS (PARTITION BY period ORDER BY logtime RANGE UNBOUNDED PRECEDING)
+), 
+
+/*  calculate sums over periods (unopt_pricesum and unopt_millis may be zero if first entry is
+    larger than charging time (61 s > 60 s); workaround: charge_millis>120000 in the next step) */
+sb_period_sums AS (
+    SELECT
+        period,
+        MIN(logtime) AS period_start,
+        SUM(millis) AS period_millis,
+        SUM(CASE WHEN charging THEN price*millis ELSE 0 END) AS pricesum,
+        SUM(CASE WHEN charging THEN millis ELSE 0 END) AS charge_millis,
+        SUM(CASE WHEN current_period_millis <= charge_millis THEN price*millis ELSE 0 END)
+            AS unopt_pricesum,
+        SUM(CASE WHEN current_period_millis <= charge_millis THEN millis ELSE 0 END) AS unopt_millis
+    FROM sb_chargelog_sums
+    GROUP BY period
+)
+
+-- calculate averages
+    SELECT
+        period_start,
+        DATEADD(MILLISECOND, period_millis, period_start) AS period_end,
+        period_millis/3.6e6 AS period_hours,
+        charge_millis/3.6e6 AS charge_hours,
+        pricesum / charge_millis AS avg_price,
+        unopt_pricesum / unopt_millis AS avg_price_unopt
+    FROM sb_period_sums
+    WHERE charge_millis > 120000